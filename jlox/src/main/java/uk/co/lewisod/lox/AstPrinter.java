@@ -51,6 +51,13 @@ public class AstPrinter implements Expr.Visitor<String> {
         return parenthesize("group", expr.expression);
     }
 
+    @Override
+    public String visitInlineExpr(Expr.Inline expr) {
+        var exprs = new ArrayList<>(expr.arguments);
+        exprs.add(expr.body);
+        return parenthesize("inline " + expr.function.name.lexeme, exprs.toArray(Expr[]::new));
+    }
+
     @Override
     public String visitLiteralExpr(Expr.Literal expr) {
         if (expr.value == null) return "nil";
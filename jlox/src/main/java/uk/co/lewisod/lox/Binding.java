@@ -0,0 +1,13 @@
+package uk.co.lewisod.lox;
+
+// How the Resolver found a variable, telling the interpreter where to read and write it
+public enum Binding {
+    // A local of the current function, stored directly in a slot of its Environment
+    LOCAL,
+    // A local of the current function that a closure has captured, so its slot holds an Upvalue
+    CELL,
+    // A variable captured from an enclosing function, found in the current closure's upvalues
+    UPVALUE,
+    // Found in the Globals table
+    GLOBAL,
+}
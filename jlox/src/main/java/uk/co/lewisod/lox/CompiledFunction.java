@@ -0,0 +1,49 @@
+package uk.co.lewisod.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+// The body of a function compiled to JVM bytecode by the JIT. Each compiled function is a hidden class extending this,
+// with a static method taking the LoxFunction being called followed by its arguments. Function bodies run some other
+// way (e.g. as nodes) can extend this too, and get an invoker that goes through call().
+public abstract class CompiledFunction {
+    private static final MethodHandle CALL;
+
+    static {
+        var lookup = MethodHandles.lookup();
+        try {
+            CALL = lookup.findVirtual(CompiledFunction.class, "call",
+                    MethodType.methodType(Object.class, LoxFunction.class, Object[].class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final MethodHandle invoker;
+
+    protected CompiledFunction(MethodHandle invoker) {
+        this.invoker = invoker;
+    }
+
+    protected CompiledFunction(int arity) {
+        this.invoker = CALL.bindTo(this).asCollector(Object[].class, arity);
+    }
+
+    // Calls the compiled body directly, for linking call sites in other compiled code
+    public MethodHandle invoker() {
+        return invoker;
+    }
+
+    // Calls the compiled body from the Interpreter. The result may be a TailCall, for the caller to complete.
+    public abstract Object call(LoxFunction function, Object[] arguments);
+
+    // Calls the compiled body as a method of the receiver. Implementations that can take the receiver directly
+    // override this, rather than having the function bound to it.
+    public Object call(LoxFunction function, LoxInstance receiver, Object[] arguments) {
+        if (receiver == function.receiver()) {
+            return call(function, arguments);
+        }
+        return call(function.bind(receiver), arguments);
+    }
+}
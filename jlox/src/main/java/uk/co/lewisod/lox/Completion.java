@@ -0,0 +1,15 @@
+package uk.co.lewisod.lox;
+
+// Executing a statement gives NORMAL if execution carries on to the next statement, or the value being returned if a
+// return statement was reached. That's how a return makes its way out of the blocks and loops it's nested in, without
+// having to throw anything.
+public final class Completion {
+    public static final Object NORMAL = new Object() {
+        @Override
+        public String toString() {
+            return "<normal completion>";
+        }
+    };
+
+    private Completion() {}
+}
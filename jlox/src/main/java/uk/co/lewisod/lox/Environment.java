@@ -1,67 +1,27 @@
 package uk.co.lewisod.lox;
 
-import java.util.HashMap;
-import java.util.Map;
-
+// The locals of a single function call, or of the top-level script. The Resolver gives every local declared anywhere
+// in the function a slot ahead of time, so values can live in a flat array.
 public class Environment {
-    final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
-
-    public Environment() {
-        this.enclosing = null;
-    }
-
-    public Environment(Environment enclosing) {
-        this.enclosing = enclosing;
-    }
-
-    public void define(String name, Object value) {
-        values.put(name, value);
-    }
-
-    public void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
-
-        if (enclosing == null) {
-            throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
-        }
-
-        enclosing.assign(name, value);
-    }
-
-    public Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
-
-        if (enclosing != null) {
-            return enclosing.get(name);
-        }
+    private final Object[] values;
+    // The variables the function being called captured from enclosing functions when it was created
+    final Upvalue[] upvalues;
 
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    public Environment(int slots, Upvalue[] upvalues) {
+        this.values = new Object[slots];
+        this.upvalues = upvalues;
     }
 
-    public Object getAt(int distance, String lexeme) {
-        var targetEnvironment = ancestor(distance);
-        return targetEnvironment.values.get(lexeme);
+    public Object get(int slot) {
+        return values[slot];
     }
 
-    public void assignAt(int distance, Token name, Object value) {
-        var targetEnvironment = ancestor(distance);
-        targetEnvironment.values.put(name.lexeme, value);
+    // Both declaring and assigning a local just store into its slot
+    public void set(int slot, Object value) {
+        values[slot] = value;
     }
 
-    private Environment ancestor(int distance) {
-        var environment = this;
-        for (var i = 0; i < distance; i++) {
-            if (environment == null) {
-                throw new IllegalStateException("Attempt to access parent of global environment");
-            }
-            environment = environment.enclosing;
-        }
-        return environment;
+    public Upvalue upvalue(int index) {
+        return upvalues[index];
     }
 }
@@ -15,6 +15,7 @@ public abstract class Expr {
     R visitSuperExpr(Super expr);
     R visitThisExpr(This expr);
     R visitGroupingExpr(Grouping expr);
+    R visitInlineExpr(Inline expr);
     R visitLiteralExpr(Literal expr);
     R visitLogicalExpr(Logical expr);
     R visitUnaryExpr(Unary expr);
@@ -24,8 +25,11 @@ public abstract class Expr {
   public abstract <R> R accept(Visitor<R> visitor);
 
   public static class Assign extends Expr {
-    final Token name;
-    final Expr value;
+    public final Token name;
+    public final Expr value;
+
+    public Binding binding = Binding.GLOBAL;
+    public int index;
 
     public Assign(Token name, Expr value) {
       this.name = name;
@@ -39,9 +43,12 @@ public abstract class Expr {
   }
 
   public static class Binary extends Expr {
-    final Expr left;
-    final Token operator;
-    final Expr right;
+    public final Expr left;
+    public final Token operator;
+    public final Expr right;
+
+    public boolean numericLeft;
+    public boolean numericRight;
 
     public Binary(Expr left, Token operator, Expr right) {
       this.left = left;
@@ -56,9 +63,11 @@ public abstract class Expr {
   }
 
   public static class Call extends Expr {
-    final Expr callee;
-    final Token paren;
-    final List<Expr> arguments;
+    public final Expr callee;
+    public final Token paren;
+    public final List<Expr> arguments;
+
+    public LoxCallable cachedCallee;
 
     public Call(Expr callee, Token paren, List<Expr> arguments) {
       this.callee = callee;
@@ -73,8 +82,10 @@ public abstract class Expr {
   }
 
   public static class Get extends Expr {
-    final Expr object;
-    final Token name;
+    public final Expr object;
+    public final Token name;
+
+    public PropertyCache cache = new PropertyCache();
 
     public Get(Expr object, Token name) {
       this.object = object;
@@ -88,9 +99,11 @@ public abstract class Expr {
   }
 
   public static class Set extends Expr {
-    final Expr object;
-    final Token name;
-    final Expr value;
+    public final Expr object;
+    public final Token name;
+    public final Expr value;
+
+    public PropertyCache cache = new PropertyCache();
 
     public Set(Expr object, Token name, Expr value) {
       this.object = object;
@@ -105,8 +118,13 @@ public abstract class Expr {
   }
 
   public static class Super extends Expr {
-    final Token keyword;
-    final Token method;
+    public final Token keyword;
+    public final Token method;
+
+    public Binding binding;
+    public int index;
+    public Binding thisBinding;
+    public int thisIndex;
 
     public Super(Token keyword, Token method) {
       this.keyword = keyword;
@@ -120,7 +138,10 @@ public abstract class Expr {
   }
 
   public static class This extends Expr {
-    final Token keyword;
+    public final Token keyword;
+
+    public Binding binding;
+    public int index;
 
     public This(Token keyword) {
       this.keyword = keyword;
@@ -133,7 +154,7 @@ public abstract class Expr {
   }
 
   public static class Grouping extends Expr {
-    final Expr expression;
+    public final Expr expression;
 
     public Grouping(Expr expression) {
       this.expression = expression;
@@ -145,8 +166,29 @@ public abstract class Expr {
     }
   }
 
+  public static class Inline extends Expr {
+    public final Stmt.Function function;
+    public final Expr callee;
+    public final List<Expr> arguments;
+    public final Expr body;
+
+    public int firstSlot;
+
+    public Inline(Stmt.Function function, Expr callee, List<Expr> arguments, Expr body) {
+      this.function = function;
+      this.callee = callee;
+      this.arguments = arguments;
+      this.body = body;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitInlineExpr(this);
+    }
+  }
+
   public static class Literal extends Expr {
-    final Object value;
+    public final Object value;
 
     public Literal(Object value) {
       this.value = value;
@@ -159,9 +201,9 @@ public abstract class Expr {
   }
 
   public static class Logical extends Expr {
-    final Expr left;
-    final Token operator;
-    final Expr right;
+    public final Expr left;
+    public final Token operator;
+    public final Expr right;
 
     public Logical(Expr left, Token operator, Expr right) {
       this.left = left;
@@ -176,8 +218,10 @@ public abstract class Expr {
   }
 
   public static class Unary extends Expr {
-    final Token operator;
-    final Expr right;
+    public final Token operator;
+    public final Expr right;
+
+    public boolean numericRight;
 
     public Unary(Token operator, Expr right) {
       this.operator = operator;
@@ -191,7 +235,11 @@ public abstract class Expr {
   }
 
   public static class Variable extends Expr {
-    final Token name;
+    public final Token name;
+
+    public Binding binding = Binding.GLOBAL;
+    public int index;
+    public Stmt.Function function;
 
     public Variable(Token name) {
       this.name = name;
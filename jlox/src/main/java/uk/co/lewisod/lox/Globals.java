@@ -0,0 +1,67 @@
+package uk.co.lewisod.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Global variables, stored in a flat array. Each global name is linked to a stable index the first time it's seen
+// (usually by the Resolver), so accessing a global at runtime is just an array load.
+public class Globals {
+    // Marks an index that's been handed out for a name that hasn't been defined (yet)
+    private static final Object UNDEFINED = new Object();
+
+    private final Map<String, Integer> indices = new HashMap<>();
+    private String[] names = new String[16];
+    private Object[] values = new Object[16];
+
+    public int indexOf(String name) {
+        var index = indices.get(name);
+        if (index != null) {
+            return index;
+        }
+
+        index = indices.size();
+        indices.put(name, index);
+        if (index == values.length) {
+            names = Arrays.copyOf(names, names.length * 2);
+            values = Arrays.copyOf(values, values.length * 2);
+        }
+        names[index] = name;
+        values[index] = UNDEFINED;
+        return index;
+    }
+
+    public void define(String name, Object value) {
+        define(indexOf(name), value);
+    }
+
+    public void define(int index, Object value) {
+        values[index] = value;
+    }
+
+    // Whether the name has been given a value, e.g. a native function or a global defined by an earlier script
+    public boolean isDefined(String name) {
+        var index = indices.get(name);
+        return index != null && values[index] != UNDEFINED;
+    }
+
+    // Takes the line of the access rather than its Token, so the VM can report errors without keeping Tokens around
+    public Object get(int index, int line) {
+        var value = values[index];
+        if (value == UNDEFINED) {
+            throw undefined(index, line);
+        }
+        return value;
+    }
+
+    public void assign(int index, int line, Object value) {
+        if (values[index] == UNDEFINED) {
+            throw undefined(index, line);
+        }
+        values[index] = value;
+    }
+
+    private RuntimeError undefined(int index, int line) {
+        return new RuntimeError(line, "Undefined variable '" + names[index] + "'.");
+    }
+}
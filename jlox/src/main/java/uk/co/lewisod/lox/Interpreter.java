@@ -1,22 +1,38 @@
 package uk.co.lewisod.lox;
 
-import java.util.ArrayList;
+import uk.co.lewisod.lox.jit.Jit;
+import uk.co.lewisod.lox.jit.JitException;
+import uk.co.lewisod.lox.node.NodeBuilder;
+
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    // Fixed reference to global scope
-    public final Environment globals = new Environment();
-    // Value changes as we enter and exit scopes
-    private Environment environment = globals;
-    // How many environments deep we should look when resolving a local var
-    private final Map<Expr, Integer> locals = new HashMap<>();
 
-    public Interpreter() {
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
+    // Global variables, looked up by the index the Resolver linked each access to
+    private final Globals globals;
+    // The locals of the function currently executing, or of the top-level script
+    private Environment environment = null;
+    // Compiles the script and hot functions to JVM bytecode, if enabled
+    private Jit jit = null;
+    // Whether to run self-specialising nodes built from the AST, rather than walking the AST itself
+    private boolean useNodes = false;
+    // How many calls are in progress, which is limited so deep recursion fails with a runtime error rather than
+    // overflowing the Java stack
+    private int callDepth = 0;
+    private int maxCallDepth = Lox.DEFAULT_MAX_CALL_DEPTH;
+    // Where the most recent call was made from
+    private int callLine = 0;
+
+    public Interpreter(Globals globals) {
+        this.globals = globals;
         globals.define("clock", new LoxCallable() {
             @Override
             public Object call(Interpreter interpreter, List<Object> arguments) {
+                return call0(interpreter);
+            }
+
+            @Override
+            public Object call0(Interpreter interpreter) {
                 return (double)System.currentTimeMillis() / 1000.0;
             }
 
@@ -32,40 +48,101 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         });
     }
 
-    public void interpret(List<Stmt> statements) {
+    public void enableJit() {
+        jit = new Jit(this, globals);
+    }
+
+    public void enableNodes() {
+        useNodes = true;
+    }
+
+    public void setMaxCallDepth(int maxCallDepth) {
+        this.maxCallDepth = maxCallDepth;
+    }
+
+    public void interpret(List<Stmt> statements, int scriptSlots) {
+        environment = new Environment(scriptSlots, new Upvalue[0]);
+        callDepth = 0;
         try {
+            if (useNodes) {
+                NodeBuilder.build(this, globals, statements).execute(environment);
+                return;
+            }
+            if (jit != null) {
+                try {
+                    var script = jit.compileScript(statements, scriptSlots);
+                    script.call(null, new Object[0]);
+                    return;
+                } catch (JitException e) {
+                    // Too big to compile, so fall back to interpreting it
+                }
+            }
+
             for (var statement : statements) {
                 execute(statement);
             }
         } catch (RuntimeError error) {
             Lox.runtimeError(error);
+        } catch (StackOverflowError error) {
+            // Deeply nested expressions can still use up the Java stack before the call depth gets too big
+            Lox.runtimeError(new RuntimeError(callLine, "Stack overflow."));
+        }
+    }
+
+    // Counts a call towards the call depth. A runtime error abandons the whole script, so there's no need to make sure
+    // exitCall() is called if one's thrown.
+    public void enterCall(int line) {
+        callLine = line;
+        if (++callDepth > maxCallDepth) {
+            throw new RuntimeError(line, "Stack overflow.");
+        }
+    }
+
+    public void exitCall() {
+        callDepth--;
+    }
+
+    void compileInBackground(Stmt.Function declaration, boolean isInitializer) {
+        if (jit != null) {
+            jit.submit(declaration, isInitializer);
         }
     }
 
-    private void execute(Stmt statement) {
-        statement.accept(this);
+    private Object execute(Stmt statement) {
+        return statement.accept(this);
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Object visitBlockStmt(Stmt.Block stmt) {
+        // Blocks store their locals in the enclosing function's environment
+        for (var statement : stmt.statements) {
+            var completion = execute(statement);
+            if (completion != Completion.NORMAL) {
+                return completion;
+            }
+        }
+        return Completion.NORMAL;
     }
 
-    void executeBlock(List<Stmt> statements, Environment environment) {
+    // Returns the value returned by the statements, or Completion.NORMAL if they ran to the end
+    Object executeBlock(List<Stmt> statements, Environment environment) {
         var previousEnv = this.environment;
         try {
             this.environment = environment;
             for (var statement : statements) {
-                execute(statement);
+                var completion = execute(statement);
+                if (completion != Completion.NORMAL) {
+                    return completion;
+                }
             }
+            return Completion.NORMAL;
         } finally {
             this.environment = previousEnv;
         }
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
+    public Object visitClassStmt(Stmt.Class stmt) {
         Object superclass = null;
         if (stmt.superclass != null) {
             superclass = evaluate(stmt.superclass);
@@ -74,85 +151,157 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
         }
 
-        environment.define(stmt.name.lexeme, null);
+        // Methods referring to the class by name need its Upvalue to exist before they're created
+        Upvalue cell = null;
+        if (stmt.cell) {
+            cell = new Upvalue(null);
+            environment.set(stmt.slot, cell);
+        }
 
         if (stmt.superclass != null) {
-            environment = new Environment(environment);
-            environment.define("super", superclass);
+            // "super" is only ever referred to by methods, so is always captured
+            environment.set(stmt.superSlot, new Upvalue(superclass));
         }
 
         var methods = new HashMap<String, LoxFunction>();
         for (var method : stmt.methods) {
-            var function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
+            var function = createFunction(method, method.name.lexeme.equals("init"));
             methods.put(method.name.lexeme, function);
         }
 
-        var klass = new LoxClass(stmt.name.lexeme, (LoxClass)superclass, methods);
+        var klass = superclass == null
+                ? new LoxClass(stmt.name.lexeme, methods)
+                : ((LoxClass) superclass).subclass(stmt.name.lexeme, methods);
 
-        if (superclass != null) {
-            environment = environment.enclosing;
+        if (cell != null) {
+            cell.value = klass;
+        } else {
+            define(stmt.name, stmt.slot, false, klass);
         }
-
-        environment.assign(stmt.name, klass);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Object visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        var function = new LoxFunction(stmt, environment, false);
-        environment.define(stmt.name.lexeme, function);
-        return null;
+    public Object visitFunctionStmt(Stmt.Function stmt) {
+        // A captured function needs its Upvalue to exist before it's created, in case it refers to itself
+        if (stmt.cell) {
+            var cell = new Upvalue(null);
+            environment.set(stmt.slot, cell);
+            cell.value = createFunction(stmt, false);
+        } else {
+            define(stmt.name, stmt.slot, false, createFunction(stmt, false));
+        }
+        return Completion.NORMAL;
+    }
+
+    private LoxFunction createFunction(Stmt.Function declaration, boolean isInitializer) {
+        var upvalues = new Upvalue[declaration.captureIndexes.length];
+        for (var i = 0; i < upvalues.length; i++) {
+            var index = declaration.captureIndexes[i];
+            upvalues[i] = declaration.capturesLocal[i] ? (Upvalue) environment.get(index) : environment.upvalues[index];
+        }
+        return new LoxFunction(declaration, upvalues, isInitializer);
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Object visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
 
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Object visitPrintStmt(Stmt.Print stmt) {
         var value = evaluate(stmt.expression);
         System.out.println(stringify(value));
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
-        var value = stmt.value == null ? null : evaluate(stmt.value);
-        throw new Return(value);
+    public Object visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.tailCall) {
+            return call((Expr.Call) stmt.value, true);
+        }
+        return stmt.value == null ? null : evaluate(stmt.value);
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Object visitVarStmt(Stmt.Var stmt) {
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
-        environment.define(stmt.name.lexeme, value);
-        return null;
+        define(stmt.name, stmt.slot, stmt.cell, value);
+        return Completion.NORMAL;
+    }
+
+    // Globals are left with a slot of -1 by the Resolver
+    private void define(Token name, int slot, boolean cell, Object value) {
+        if (slot == -1) {
+            globals.define(name.lexeme, value);
+        } else {
+            environment.set(slot, cell ? new Upvalue(value) : value);
+        }
     }
 
+    // A loop counting a local up or down, which nothing else assigns to. Once the counter's been checked to be a
+    // number it's kept as a double, and only boxed to store it back in its slot for the body to read.
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
+    public Object visitForStmt(Stmt.For stmt) {
+        var start = environment.get(stmt.counter.index);
+        var limit = evaluate(stmt.limit);
+        if (!(start instanceof Double)) {
+            throw new RuntimeError(stmt.operator, "Operands must be numbers");
+        }
+
+        var counter = (double) start;
+        while (compare(stmt.operator, counter, limit)) {
+            var completion = execute(stmt.body);
+            if (completion != Completion.NORMAL) {
+                return completion;
+            }
+            counter += stmt.step;
+            environment.set(stmt.counter.index, counter);
+            limit = evaluate(stmt.limit);
+        }
+        return Completion.NORMAL;
+    }
+
+    private static boolean compare(Token operator, double left, Object right) {
+        if (!(right instanceof Double limit)) {
+            throw new RuntimeError(operator, "Operands must be numbers");
+        }
+        return switch (operator.type) {
+            case GREATER -> left > limit;
+            case GREATER_EQUAL -> left >= limit;
+            case LESS -> left < limit;
+            case LESS_EQUAL -> left <= limit;
+            default -> throw new IllegalStateException("Unknown comparison encountered");
+        };
+    }
+
+    @Override
+    public Object visitWhileStmt(Stmt.While stmt) {
         while (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
+            var completion = execute(stmt.body);
+            if (completion != Completion.NORMAL) {
+                return completion;
+            }
         }
-        return null;
+        return Completion.NORMAL;
     }
 
-    private static String stringify(Object object) {
+    public static String stringify(Object object) {
         if (object == null) return "nil";
 
         if (object instanceof Double) {
@@ -169,11 +318,11 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitAssignExpr(Expr.Assign expr) {
         var value = evaluate(expr.value);
 
-        var distance = locals.get(expr);
-        if (distance == null) {
-            globals.assign(expr.name, value);
-        } else {
-            environment.assignAt(distance, expr.name, value);
+        switch (expr.binding) {
+            case LOCAL -> environment.set(expr.index, value);
+            case CELL -> ((Upvalue) environment.get(expr.index)).value = value;
+            case UPVALUE -> environment.upvalues[expr.index].value = value;
+            case GLOBAL -> globals.assign(expr.index, expr.name.line, value);
         }
 
         return value;
@@ -181,84 +330,220 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        var left = evaluate(expr.left);
-        var right = evaluate(expr.right);
-
         return switch (expr.operator.type) {
-            case MINUS -> {
-                checkNumberOperand(expr.operator, left, right);
-                yield (double) left - (double) right;
-            }
-            case SLASH -> {
-                checkNumberOperand(expr.operator, left, right);
-                checkNotZero(expr.operator, right);
-                yield (double) left / (double) right;
-            }
-            case STAR -> {
-                checkNumberOperand(expr.operator, left, right);
-                yield (double) left * (double) right;
-            }
+            // The result is only boxed once, however many arithmetic operators it's made of
+            case MINUS, SLASH, STAR -> evaluateDouble(expr);
             case PLUS -> {
+                if (expr.numericLeft || expr.numericRight) {
+                    yield leftNumber(expr, "Operands must both be numbers or strings")
+                            + rightNumber(expr, "Operands must both be numbers or strings");
+                }
+
+                var left = evaluate(expr.left);
+                var right = evaluate(expr.right);
                 if (left instanceof Double first && right instanceof Double second) {
                     yield first + second;
                 }
 
-                if (left instanceof String first && right instanceof String second) {
-                    yield first + second;
+                if (left instanceof CharSequence first && right instanceof CharSequence second) {
+                    yield Rope.concat(first, second);
                 }
 
                 throw new RuntimeError(expr.operator, "Operands must both be numbers or strings");
             }
-            case GREATER -> {
-                checkNumberOperand(expr.operator, left, right);
-                yield (double) left > (double) right;
-            }
-            case GREATER_EQUAL -> {
-                checkNumberOperand(expr.operator, left, right);
-                yield (double) left >= (double) right;
-            }
-            case LESS -> {
-                checkNumberOperand(expr.operator, left, right);
-                yield (double) left < (double) right;
+            case GREATER -> leftNumber(expr, "Operands must be numbers") > rightNumber(expr, "Operands must be numbers");
+            case GREATER_EQUAL -> leftNumber(expr, "Operands must be numbers") >= rightNumber(expr, "Operands must be numbers");
+            case LESS -> leftNumber(expr, "Operands must be numbers") < rightNumber(expr, "Operands must be numbers");
+            case LESS_EQUAL -> leftNumber(expr, "Operands must be numbers") <= rightNumber(expr, "Operands must be numbers");
+            case BANG_EQUAL -> !isEqual(evaluate(expr.left), evaluate(expr.right));
+            case EQUAL_EQUAL -> isEqual(evaluate(expr.left), evaluate(expr.right));
+            default -> throw new IllegalStateException("Unknown binary expression encountered");
+        };
+    }
+
+    // Evaluates an expression the Resolver found always produces a number, without boxing the result or any numbers
+    // in between
+    private double evaluateDouble(Expr expr) {
+        if (expr instanceof Expr.Grouping grouping) {
+            return evaluateDouble(grouping.expression);
+        }
+        if (expr instanceof Expr.Literal literal) {
+            return (double) literal.value;
+        }
+        if (expr instanceof Expr.Unary unary) {
+            if (unary.numericRight) {
+                return -evaluateDouble(unary.right);
             }
-            case LESS_EQUAL -> {
-                checkNumberOperand(expr.operator, left, right);
-                yield (double) left <= (double) right;
+            var right = evaluate(unary.right);
+            checkNumberOperand(unary.operator, right);
+            return -(double) right;
+        }
+
+        var binary = (Expr.Binary) expr;
+        var left = leftNumber(binary, "Operands must be numbers");
+        var right = rightNumber(binary, "Operands must be numbers");
+        return switch (binary.operator.type) {
+            case MINUS -> left - right;
+            case SLASH -> {
+                checkNotZero(binary.operator, right);
+                yield left / right;
             }
-            case BANG_EQUAL -> !isEqual(left, right);
-            case EQUAL_EQUAL -> isEqual(left, right);
-            default -> throw new IllegalStateException("Unknown binary expression encountered");
+            case STAR -> left * right;
+            default -> throw new IllegalStateException("Unknown numeric expression encountered");
         };
     }
 
+    // Evaluates the left operand of an operator that needs numbers. If it isn't one, the right operand still gets
+    // evaluated before the error is reported, like when both operands are evaluated up front.
+    private double leftNumber(Expr.Binary expr, String message) {
+        if (expr.numericLeft) {
+            return evaluateDouble(expr.left);
+        }
+        if (evaluate(expr.left) instanceof Double value) {
+            return value;
+        }
+        evaluate(expr.right);
+        throw new RuntimeError(expr.operator, message);
+    }
+
+    private double rightNumber(Expr.Binary expr, String message) {
+        if (expr.numericRight) {
+            return evaluateDouble(expr.right);
+        }
+        if (evaluate(expr.right) instanceof Double value) {
+            return value;
+        }
+        throw new RuntimeError(expr.operator, message);
+    }
+
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        var callee = evaluate(expr.callee);
+        return call(expr, false);
+    }
+
+    // Tail calls to Lox functions give back a TailCall for the function returning to make, instead of making the call
+    private Object call(Expr.Call expr, boolean tail) {
+        // Methods that are called straight away get passed their receiver, rather than being bound to it first
+        if (expr.callee instanceof Expr.Get get) {
+            return invokeProperty(expr, get, tail);
+        }
+        if (expr.callee instanceof Expr.Super superExpr) {
+            return invokeSuper(expr, superExpr, tail);
+        }
+
+        return callWithArguments(expr, evaluate(expr.callee), null, tail);
+    }
 
-        var arguments = new ArrayList<>();
-        for (var argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+    private Object invokeProperty(Expr.Call expr, Expr.Get get, boolean tail) {
+        var object = evaluate(get.object);
+        if (!(object instanceof LoxInstance instance)) {
+            throw new RuntimeError(get.name, "Only instances of classes have properties.");
         }
 
-        if (callee instanceof LoxCallable callable) {
-            return callCallable(expr.paren, callable, arguments);
+        var method = instance.getMethod(get.name, get.cache);
+        if (method == null) {
+            // The property's a field, which could hold anything
+            return callWithArguments(expr, instance.get(get.name, get.cache), null, tail);
         }
+        return callWithArguments(expr, method, instance, tail);
+    }
 
-        throw new RuntimeError(expr.paren, "Can only call functions and classes");
+    private Object invokeSuper(Expr.Call expr, Expr.Super superExpr, boolean tail) {
+        var method = findSuperMethod(superExpr);
+        var object = (LoxInstance) lookupVariable(superExpr.keyword, superExpr.thisBinding, superExpr.thisIndex);
+        return callWithArguments(expr, method, object, tail);
     }
 
-    private Object callCallable(Token paren, LoxCallable callable, List<Object> arguments) {
-        if (arguments.size() != callable.arity()) {
-            throw new RuntimeError(paren, "Expected " + callable.arity() + " arguments but got " + arguments.size() + ".");
+    // Evaluates the arguments and calls the callee with them, through the entry point for that number of arguments so
+    // they don't need collecting into a list. Methods are passed their receiver, which is null for anything else.
+    private Object callWithArguments(Expr.Call expr, Object callee, LoxInstance receiver, boolean tail) {
+        if (tail && callee instanceof LoxFunction function) {
+            return tailCall(expr, function, receiver == null ? function.receiver() : receiver);
         }
-        return callable.call(this, arguments);
+
+        var arguments = expr.arguments;
+        var result = switch (arguments.size()) {
+            case 0 -> {
+                var callable = enterCall(expr, callee, 0);
+                yield receiver == null ? callable.call0(this) : ((LoxFunction) callable).invoke0(this, receiver);
+            }
+            case 1 -> {
+                var a = evaluate(arguments.get(0));
+                var callable = enterCall(expr, callee, 1);
+                yield receiver == null ? callable.call1(this, a) : ((LoxFunction) callable).invoke1(this, receiver, a);
+            }
+            case 2 -> {
+                var a = evaluate(arguments.get(0));
+                var b = evaluate(arguments.get(1));
+                var callable = enterCall(expr, callee, 2);
+                yield receiver == null
+                        ? callable.call2(this, a, b)
+                        : ((LoxFunction) callable).invoke2(this, receiver, a, b);
+            }
+            case 3 -> {
+                var a = evaluate(arguments.get(0));
+                var b = evaluate(arguments.get(1));
+                var c = evaluate(arguments.get(2));
+                var callable = enterCall(expr, callee, 3);
+                yield receiver == null
+                        ? callable.call3(this, a, b, c)
+                        : ((LoxFunction) callable).invoke3(this, receiver, a, b, c);
+            }
+            default -> {
+                var values = evaluateArguments(expr);
+                var callable = enterCall(expr, callee, values.length);
+                yield receiver == null
+                        ? callable.callArray(this, values)
+                        : ((LoxFunction) callable).invokeArray(this, receiver, values);
+            }
+        };
+        exitCall();
+        return result;
+    }
+
+    private TailCall tailCall(Expr.Call expr, LoxFunction function, LoxInstance receiver) {
+        var values = evaluateArguments(expr);
+        if (function != expr.cachedCallee) {
+            checkCallable(expr, function, values.length);
+        }
+        return new TailCall(function, receiver, values);
+    }
+
+    private Object[] evaluateArguments(Expr.Call expr) {
+        var values = new Object[expr.arguments.size()];
+        for (var i = 0; i < values.length; i++) {
+            values[i] = evaluate(expr.arguments.get(i));
+        }
+        return values;
+    }
+
+    // Call sites usually call the same thing every time, so the last callee that passed the checks is cached on the
+    // call expression and the checks are skipped when it's called again
+    private LoxCallable enterCall(Expr.Call expr, Object callee, int argumentCount) {
+        var cached = expr.cachedCallee;
+        var callable = callee == cached && cached != null ? cached : checkCallable(expr, callee, argumentCount);
+        enterCall(expr.paren.line);
+        return callable;
+    }
+
+    // Checks the callee can be called with that many arguments, and caches it on the call expression if so
+    private static LoxCallable checkCallable(Expr.Call expr, Object callee, int argumentCount) {
+        if (!(callee instanceof LoxCallable callable)) {
+            throw new RuntimeError(expr.paren, "Can only call functions and classes");
+        }
+        if (argumentCount != callable.arity()) {
+            throw new RuntimeError(expr.paren,
+                    "Expected " + callable.arity() + " arguments but got " + argumentCount + ".");
+        }
+        expr.cachedCallee = callable;
+        return callable;
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
         var object = evaluate(expr.object);
         if (object instanceof LoxInstance instance) {
-            return instance.get(expr.name);
+            return instance.get(expr.name, expr.cache);
         }
 
         throw new RuntimeError(expr.name, "Only instances of classes have properties.");
@@ -270,7 +555,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
         if (object instanceof LoxInstance instance) {
             var value = evaluate(expr.value);
-            instance.set(expr.name, value);
+            instance.set(expr.name, value, expr.cache);
             return value;
         }
 
@@ -279,19 +564,23 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        var distance = locals.get(expr);
-        var superclass = (LoxClass) environment.getAt(distance, "super");
-        // Environment containing "this" always 1 up from env containing "super"
-        var object = (LoxInstance) environment.getAt(distance - 1, "this");
+        var method = findSuperMethod(expr);
+        var object = (LoxInstance) lookupVariable(expr.keyword, expr.thisBinding, expr.thisIndex);
+        return method.bind(object);
+    }
+
+    private LoxFunction findSuperMethod(Expr.Super expr) {
+        var superclass = (LoxClass) lookupVariable(expr.keyword, expr.binding, expr.index);
         var method = superclass.findMethod(expr.method.lexeme);
-        return method
-                .orElseThrow(() -> new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme + "."))
-                .bind(object);
+        if (method == null) {
+            throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme + ".");
+        }
+        return method;
     }
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookupVariable(expr.keyword, expr);
+        return lookupVariable(expr.keyword, expr.binding, expr.index);
     }
 
     @Override
@@ -299,6 +588,19 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return evaluate(expr.expression);
     }
 
+    // The arguments go in slots of the caller's frame set aside for the inlined function's parameters. Reading the
+    // callee (a global function) checks it's been defined by now.
+    @Override
+    public Object visitInlineExpr(Expr.Inline expr) {
+        if (expr.callee != null) {
+            evaluate(expr.callee);
+        }
+        for (var i = 0; i < expr.arguments.size(); i++) {
+            environment.set(expr.firstSlot + i, evaluate(expr.arguments.get(i)));
+        }
+        return evaluate(expr.body);
+    }
+
     @Override
     public Object visitLiteralExpr(Expr.Literal expr) {
         return expr.value;
@@ -319,46 +621,44 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-        var right = evaluate(expr.right);
-
         return switch (expr.operator.type) {
-            case MINUS -> {
-                checkNumberOperand(expr.operator, right);
-                yield -(double) right;
-            }
-            case BANG -> !isTruthy(right);
+            case MINUS -> evaluateDouble(expr);
+            case BANG -> !isTruthy(evaluate(expr.right));
             default -> throw new IllegalStateException("Unknown unary expression encountered");
         };
     }
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookupVariable(expr.name, expr);
+        return lookupVariable(expr.name, expr.binding, expr.index);
     }
 
-    private Object lookupVariable(Token name, Expr expr) {
-        var distance = locals.get(expr);
-        if (distance == null) {
-            return globals.get(name);
-        }
-        // Assuming the variable is in the specified environment - relies on the fact the Resolver
-        // did it's job properly
-        return environment.getAt(distance, name.lexeme);
+    // Assuming the variable is where the Resolver said it would be - relies on the fact the Resolver did it's job
+    // properly
+    private Object lookupVariable(Token name, Binding binding, int index) {
+        return switch (binding) {
+            case LOCAL -> environment.get(index);
+            case CELL -> ((Upvalue) environment.get(index)).value;
+            case UPVALUE -> environment.upvalues[index].value;
+            case GLOBAL -> globals.get(index, name.line);
+        };
     }
 
     private Object evaluate(Expr expr) {
         return expr.accept(this);
     }
 
-    private static boolean isTruthy(Object value) {
+    // Lox's rules for truthiness and equality, which every way of running a script shares
+    public static boolean isTruthy(Object value) {
         if (value == null) return false;
         if (value instanceof  Boolean) return (boolean)value;
         return true;
     }
 
-    private static boolean isEqual(Object a, Object b) {
+    public static boolean isEqual(Object a, Object b) {
         if (a == null && b == null) return true;
         if (a == null) return false;
+        if (b instanceof Rope) return b.equals(a);
         return a.equals(b);
     }
 
@@ -367,18 +667,10 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         throw new RuntimeError(operator, "Operand must be a number");
     }
 
-    private static void checkNumberOperand(Token operator, Object left, Object right) {
-        if (left instanceof Double && right instanceof Double) return;
-        throw new RuntimeError(operator, "Operands must be numbers");
-    }
-
-    private static void checkNotZero(Token operator, Object operand) {
-        if (operand.equals(0.0)) {
+    // Like Double.equals(0.0), so dividing by -0 is allowed
+    private static void checkNotZero(Token operator, double operand) {
+        if (Double.compare(operand, 0.0) == 0) {
             throw new RuntimeError(operator, "Cannot divide by zero");
         }
     }
-
-    public void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
-    }
 }
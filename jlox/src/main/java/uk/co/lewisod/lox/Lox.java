@@ -1,34 +1,126 @@
 package uk.co.lewisod.lox;
 
 
+import uk.co.lewisod.lox.vm.Compiler;
+import uk.co.lewisod.lox.vm.VM;
+
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Lox {
-    private static final Interpreter interpreter = new Interpreter();
+    // How deeply calls can be nested before a script fails with a stack overflow, unless set with --max-depth
+    public static final int DEFAULT_MAX_CALL_DEPTH = 10_000;
+    // Java stack to reserve for each Lox call. The tree-walker nests several Java calls for each Lox call, and
+    // expressions nested inside the called function add more.
+    private static final long STACK_PER_CALL = 16 * 1024;
+    // The most stack to ask for, as threads with much more than this can fail to start
+    private static final long MAX_STACK = 1024 * 1024 * 1024;
+
+    private static final Globals globals = new Globals();
+    // Shared by every line the REPL runs, so a name is the same String each time it's used
+    private static final Symbols symbols = new Symbols();
+    // Only one of these is used, depending on whether the script is run on the VM or by walking the tree
+    private static Interpreter interpreter = null;
+    private static VM vm = null;
+    // Whether the optimiser inlines calls to small functions, unless disabled with --no-inline
+    private static boolean inline = true;
+    // Whether variables are resolved as the script is parsed, rather than by walking the whole AST afterwards, unless
+    // disabled with --resolve-after-parse
+    private static boolean resolveWhileParsing = true;
     private static boolean hadError = false;
     private static boolean hadRuntimeError = false;
 
-    public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox <script>");
-            System.exit(64);
+    public static void main(String[] args) throws IOException, InterruptedException {
+        // Which of --vm, --jit or --nodes was given, if any
+        String mode = null;
+        String script = null;
+        var maxCallDepth = DEFAULT_MAX_CALL_DEPTH;
+        for (var arg : args) {
+            if (mode == null && (arg.equals("--vm") || arg.equals("--jit") || arg.equals("--nodes"))) {
+                mode = arg;
+            } else if (arg.equals("--no-inline")) {
+                inline = false;
+            } else if (arg.equals("--resolve-after-parse")) {
+                resolveWhileParsing = false;
+            } else if (arg.startsWith("--max-depth=")) {
+                maxCallDepth = parseMaxCallDepth(arg.substring("--max-depth=".length()));
+            } else if (script == null && !arg.startsWith("--")) {
+                script = arg;
+            } else {
+                usage();
+            }
         }
 
-        if (args.length == 1) {
-            runFile(args[0]);
+        if ("--vm".equals(mode)) {
+            vm = new VM(globals);
+            vm.setMaxCallDepth(maxCallDepth);
         } else {
-            runPrompt();
+            interpreter = new Interpreter(globals);
+            interpreter.setMaxCallDepth(maxCallDepth);
+            if ("--jit".equals(mode)) {
+                interpreter.enableJit();
+            } else if ("--nodes".equals(mode)) {
+                interpreter.enableNodes();
+            }
         }
+
+        // Run on a thread with enough stack for calls to be nested as deeply as they're allowed to be, so scripts
+        // fail with a runtime error rather than a StackOverflowError. The VM keeps its call frames on the heap, so
+        // the default is enough for it.
+        var stackSize = vm != null ? 0 : Math.min(maxCallDepth * STACK_PER_CALL, MAX_STACK);
+        var path = script;
+        // Whatever the runner fails with is rethrown here, so jlox exits the same way it would have on this thread
+        var failure = new AtomicReference<Throwable>();
+        var runner = new Thread(null, () -> {
+            try {
+                if (path != null) {
+                    runFile(path);
+                } else {
+                    runPrompt();
+                }
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        }, "jlox", stackSize);
+        runner.start();
+        runner.join();
+
+        var error = failure.get();
+        if (error instanceof IOException e) throw e;
+        if (error instanceof RuntimeException e) throw e;
+        if (error instanceof Error e) throw e;
+    }
+
+    private static int parseMaxCallDepth(String value) {
+        try {
+            var depth = Integer.parseInt(value);
+            if (depth > 0) {
+                return depth;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through to the usage message
+        }
+        usage();
+        return 0;
+    }
+
+    private static void usage() {
+        System.out.println("Usage: jlox [--vm|--jit|--nodes] [--max-depth=<calls>] [--no-inline] "
+                + "[--resolve-after-parse] [script]");
+        System.exit(64);
     }
 
     private static void runFile(String path) throws IOException {
-        var bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        // Scan the file straight from the page cache, rather than copying it onto the heap and decoding it first
+        try (var channel = FileChannel.open(Paths.get(path))) {
+            run(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), inline);
+        }
 
         if (hadError) {
             System.exit(65);
@@ -47,24 +139,39 @@ public class Lox {
             System.out.print("> ");
             var line = reader.readLine();
             if (line == null) break;
-            run(line);
+            // A later line could redefine a function that's been inlined into this one, so the REPL doesn't inline
+            run(ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8)), false);
             hadError = false;
         }
     }
 
-    private static void run(String source) {
-        var scanner = new Scanner(source);
-        var tokens = scanner.scanTokens();
-
-        var parser = new Parser(tokens);
+    // Runs UTF-8 source
+    private static void run(ByteBuffer source, boolean inline) {
+        var scanner = source.limit() >= ParallelScanner.MIN_SOURCE_SIZE
+                ? new ParallelScanner(source, symbols)
+                : new Scanner(source, symbols);
+        var resolver = new Resolver(globals);
+        var parser = resolveWhileParsing ? new Parser(scanner, resolver) : new Parser(scanner);
         var statements = parser.parse();
         if (hadError) return;
 
-        var resolver = new Resolver(interpreter);
-        resolver.resolve(statements);
+        if (!resolveWhileParsing) {
+            resolver.resolve(statements);
+        }
+        // Resolution errors are only worth reporting if the program parsed
+        resolver.reportErrors();
         if (hadError) return;
 
-        interpreter.interpret(statements);
+        var optimizer = new Optimizer(resolver.scriptSlots(), inline);
+        statements = optimizer.optimize(statements);
+
+        if (vm != null) {
+            var script = Compiler.compile(statements, optimizer.scriptSlots(), globals);
+            if (hadError) return;
+            vm.interpret(script);
+        } else {
+            interpreter.interpret(statements, optimizer.scriptSlots());
+        }
     }
 
     public static void error(Token token, String message) {
@@ -85,7 +192,7 @@ public class Lox {
     }
 
     public static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
+        System.err.println(error.getMessage() + "\n[line " + error.line + "]");
         hadRuntimeError = true;
     }
 }
@@ -1,8 +1,33 @@
 package uk.co.lewisod.lox;
 
+import java.util.Arrays;
 import java.util.List;
 
 public interface LoxCallable {
     Object call(Interpreter interpreter, List<Object> arguments);
     int arity();
+
+    // Entry points for calls with a fixed number of arguments, which callers use so they don't have to collect the
+    // arguments into a list. The arity has already been checked. Callables that are called a lot implement these
+    // directly rather than going through call().
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, List.of());
+    }
+
+    default Object call1(Interpreter interpreter, Object a) {
+        return call(interpreter, Arrays.asList(a));
+    }
+
+    default Object call2(Interpreter interpreter, Object a, Object b) {
+        return call(interpreter, Arrays.asList(a, b));
+    }
+
+    default Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        return call(interpreter, Arrays.asList(a, b, c));
+    }
+
+    // For calls with more arguments than that
+    default Object callArray(Interpreter interpreter, Object[] arguments) {
+        return call(interpreter, Arrays.asList(arguments));
+    }
 }
@@ -1,18 +1,34 @@
 package uk.co.lewisod.lox;
 
-import java.util.Map;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
 
 public class LoxClass implements LoxCallable {
     final String name;
-    final LoxClass superclass;
+    // Every method the class's instances have, including inherited ones, so looking one up never has to walk up
+    // through the superclasses
     private final Map<String, LoxFunction> methods;
+    // Looked up once, since it's needed every time the class is called
+    private final LoxFunction initializer;
+    private final int arity;
+    // The shape of new instances, before they have any fields
+    final Shape rootShape = new Shape();
+    // How many fields instances of the class have ended up with, so new ones can start off with room for them all
+    int expectedFields = 0;
 
-    public LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
+    public LoxClass(String name, Map<String, LoxFunction> methods) {
         this.name = name;
-        this.superclass = superclass;
-        this.methods = methods;
+        this.methods = Map.copyOf(methods);
+        this.initializer = this.methods.get("init");
+        this.arity = initializer == null ? 0 : initializer.arity();
+    }
+
+    // A class inheriting this one's methods, as well as having its own (which override them)
+    public LoxClass subclass(String name, Map<String, LoxFunction> methods) {
+        var allMethods = new HashMap<>(this.methods);
+        allMethods.putAll(methods);
+        return new LoxClass(name, allMethods);
     }
 
     @Override
@@ -22,28 +38,61 @@ public class LoxClass implements LoxCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
+        return callArray(interpreter, arguments.toArray());
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
         var instance = new LoxInstance(this);
-        findMethod("init")
-                .ifPresent(init -> init.bind(instance).call(interpreter, arguments));
+        if (initializer != null) {
+            initializer.invoke0(interpreter, instance);
+        }
         return instance;
     }
 
     @Override
-    public int arity() {
-        return findMethod("init")
-                .map(LoxFunction::arity)
-                .orElse(0);
+    public Object call1(Interpreter interpreter, Object a) {
+        var instance = new LoxInstance(this);
+        if (initializer != null) {
+            initializer.invoke1(interpreter, instance, a);
+        }
+        return instance;
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        var instance = new LoxInstance(this);
+        if (initializer != null) {
+            initializer.invoke2(interpreter, instance, a, b);
+        }
+        return instance;
     }
 
-    public Optional<LoxFunction> findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return Optional.of(methods.get(name));
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        var instance = new LoxInstance(this);
+        if (initializer != null) {
+            initializer.invoke3(interpreter, instance, a, b, c);
         }
+        return instance;
+    }
 
-        if (superclass != null) {
-            return superclass.findMethod(name);
+    @Override
+    public Object callArray(Interpreter interpreter, Object[] arguments) {
+        var instance = new LoxInstance(this);
+        if (initializer != null) {
+            initializer.invokeArray(interpreter, instance, arguments);
         }
+        return instance;
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
 
-        return Optional.empty();
+    // Returns null if neither the class nor its superclasses have the method
+    public LoxFunction findMethod(String name) {
+        return methods.get(name);
     }
 }
@@ -3,40 +3,159 @@ package uk.co.lewisod.lox;
 import java.util.List;
 
 public class LoxFunction implements LoxCallable {
+    // How many times a function needs to be called before the JIT (if enabled) compiles it
+    private static final int JIT_THRESHOLD = 1000;
+    private static final Object[] NO_ARGUMENTS = new Object[0];
+
     private final Stmt.Function declaration;
-    private final Environment closure;
+    // Only the variables the function actually refers to from enclosing functions, not their whole Environments
+    private final Upvalue[] upvalues;
     private final boolean isInitializer;
+    // The instance a method has been bound to, which becomes "this"
+    private final LoxInstance receiver;
+
+    public LoxFunction(Stmt.Function declaration, Upvalue[] upvalues, boolean isInitializer) {
+        this(declaration, upvalues, isInitializer, null);
+    }
 
-    public LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+    private LoxFunction(Stmt.Function declaration, Upvalue[] upvalues, boolean isInitializer, LoxInstance receiver) {
         this.declaration = declaration;
-        this.closure = closure;
+        this.upvalues = upvalues;
         this.isInitializer = isInitializer;
+        this.receiver = receiver;
     }
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        var environment = new Environment(closure);
-        for (var i = 0; i < declaration.params.size(); i++) {
-            var param = declaration.params.get(i);
-            var argument = arguments.get(i);
-            environment.define(param.lexeme, argument);
+        return callArray(interpreter, arguments.toArray());
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return invoke0(interpreter, receiver);
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        return invoke1(interpreter, receiver, a);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        return invoke2(interpreter, receiver, a, b);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        return invoke3(interpreter, receiver, a, b, c);
+    }
+
+    @Override
+    public Object callArray(Interpreter interpreter, Object[] arguments) {
+        return invokeArray(interpreter, receiver, arguments);
+    }
+
+    // The invoke methods call the function as a method of the receiver, without needing to bind it first. Arguments
+    // go straight into their slots in the new environment.
+    public Object invoke0(Interpreter interpreter, LoxInstance receiver) {
+        var compiled = declaration.compiled;
+        if (compiled != null) {
+            return TailCall.complete(compiled.call(this, receiver, NO_ARGUMENTS), interpreter);
+        }
+
+        return execute(interpreter, enter(interpreter, receiver), receiver);
+    }
+
+    public Object invoke1(Interpreter interpreter, LoxInstance receiver, Object a) {
+        var compiled = declaration.compiled;
+        if (compiled != null) {
+            return TailCall.complete(compiled.call(this, receiver, new Object[] {a}), interpreter);
         }
 
-        try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            // Force initializers to always return this
-            if (isInitializer) {
-                return closure.getAt(0, "this");
-            }
+        var environment = enter(interpreter, receiver);
+        environment.set(1, a);
+        return execute(interpreter, environment, receiver);
+    }
 
-            return returnValue.value;
+    public Object invoke2(Interpreter interpreter, LoxInstance receiver, Object a, Object b) {
+        var compiled = declaration.compiled;
+        if (compiled != null) {
+            return TailCall.complete(compiled.call(this, receiver, new Object[] {a, b}), interpreter);
         }
 
+        var environment = enter(interpreter, receiver);
+        environment.set(1, a);
+        environment.set(2, b);
+        return execute(interpreter, environment, receiver);
+    }
+
+    public Object invoke3(Interpreter interpreter, LoxInstance receiver, Object a, Object b, Object c) {
+        var compiled = declaration.compiled;
+        if (compiled != null) {
+            return TailCall.complete(compiled.call(this, receiver, new Object[] {a, b, c}), interpreter);
+        }
+
+        var environment = enter(interpreter, receiver);
+        environment.set(1, a);
+        environment.set(2, b);
+        environment.set(3, c);
+        return execute(interpreter, environment, receiver);
+    }
+
+    public Object invokeArray(Interpreter interpreter, LoxInstance receiver, Object[] arguments) {
+        var compiled = declaration.compiled;
+        if (compiled != null) {
+            return TailCall.complete(compiled.call(this, receiver, arguments), interpreter);
+        }
+
+        var environment = enter(interpreter, receiver);
+        for (var i = 0; i < arguments.length; i++) {
+            environment.set(i + 1, arguments[i]);
+        }
+        return execute(interpreter, environment, receiver);
+    }
+
+    private Environment enter(Interpreter interpreter, LoxInstance receiver) {
+        if (declaration.calls++ == JIT_THRESHOLD) {
+            interpreter.compileInBackground(declaration, isInitializer);
+        }
+
+        var environment = new Environment(declaration.slots, upvalues);
+        // Slot zero holds the receiver (unused if this isn't a method), followed by the parameters
+        environment.set(0, receiver);
+        return environment;
+    }
+
+    private Object execute(Interpreter interpreter, Environment environment, LoxInstance receiver) {
+        return TailCall.complete(run(interpreter, environment, receiver), interpreter);
+    }
+
+    // Runs the body, giving back any tail call it makes instead of making it
+    private Object run(Interpreter interpreter, Environment environment, LoxInstance receiver) {
+        for (var slot : declaration.cellParams) {
+            environment.set(slot, new Upvalue(environment.get(slot)));
+        }
+
+        var completion = interpreter.executeBlock(declaration.body, environment);
+        // Force initializers to always return this
         if (isInitializer) {
-            return closure.getAt(0, "this");
+            return receiver;
+        }
+        return completion == Completion.NORMAL ? null : completion;
+    }
+
+    // Runs the function for a tail call, giving back any tail call it makes in turn
+    Object runTailCall(Interpreter interpreter, LoxInstance receiver, Object[] arguments) {
+        var compiled = declaration.compiled;
+        if (compiled != null) {
+            return compiled.call(this, receiver, arguments);
+        }
+
+        var environment = enter(interpreter, receiver);
+        for (var i = 0; i < arguments.length; i++) {
+            environment.set(i + 1, arguments[i]);
         }
-        return null;
+        return run(interpreter, environment, receiver);
     }
 
     @Override
@@ -44,10 +163,20 @@ public class LoxFunction implements LoxCallable {
         return declaration.params.size();
     }
 
+    public Stmt.Function declaration() {
+        return declaration;
+    }
+
+    public Upvalue[] upvalues() {
+        return upvalues;
+    }
+
+    public LoxInstance receiver() {
+        return receiver;
+    }
+
     public LoxFunction bind(LoxInstance instance) {
-        var environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment, isInitializer);
+        return new LoxFunction(declaration, upvalues, isInitializer, instance);
     }
 
     @Override
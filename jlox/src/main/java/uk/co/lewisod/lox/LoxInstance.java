@@ -1,14 +1,17 @@
 package uk.co.lewisod.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 public class LoxInstance {
-    private final Map<String, Object> fields = new HashMap<>();
     private final LoxClass klass;
+    // Where each field is in the array of values is decided by the shape, which instances with the same fields share
+    private Shape shape;
+    private Object[] fields;
 
     public LoxInstance(LoxClass klass) {
         this.klass = klass;
+        this.shape = klass.rootShape;
+        this.fields = new Object[klass.expectedFields];
     }
 
     @Override
@@ -16,18 +19,82 @@ public class LoxInstance {
         return klass.name + " instance";
     }
 
-    public Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+    public Object get(Token name, PropertyCache cache) {
+        var entry = cache.find(shape);
+        if (entry != -1) {
+            var method = cache.methods[entry];
+            return method == null ? fields[cache.slots[entry]] : method.bind(this);
         }
 
-        var foundMethod = klass.findMethod(name.lexeme);
-        return foundMethod
-                .map(method -> method.bind(this))
-                .orElseThrow(() -> new RuntimeError(name, "Undefined property " + name.lexeme + "."));
+        var slot = shape.slot(name.lexeme);
+        if (slot != -1) {
+            cache.add(shape, slot, null, null);
+            return fields[slot];
+        }
+
+        var method = findMethod(name);
+        cache.add(shape, -1, method, null);
+        return method.bind(this);
     }
 
-    public void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+    // Returns the method the property refers to without binding it to the instance, so it can be called directly, or
+    // null if the property is a field
+    public LoxFunction getMethod(Token name, PropertyCache cache) {
+        var entry = cache.find(shape);
+        if (entry != -1) {
+            return cache.methods[entry];
+        }
+
+        var slot = shape.slot(name.lexeme);
+        if (slot != -1) {
+            cache.add(shape, slot, null, null);
+            return null;
+        }
+
+        var method = findMethod(name);
+        cache.add(shape, -1, method, null);
+        return method;
+    }
+
+    private LoxFunction findMethod(Token name) {
+        var method = klass.findMethod(name.lexeme);
+        if (method == null) {
+            throw new RuntimeError(name, "Undefined property " + name.lexeme + ".");
+        }
+        return method;
+    }
+
+    public void set(Token name, Object value, PropertyCache cache) {
+        var entry = cache.find(shape);
+        if (entry != -1) {
+            var transition = cache.transitions[entry];
+            if (transition != null) {
+                addField(transition);
+            }
+            fields[cache.slots[entry]] = value;
+            return;
+        }
+
+        var slot = shape.slot(name.lexeme);
+        if (slot != -1) {
+            cache.add(shape, slot, null, null);
+        } else {
+            var transition = shape.withField(name.lexeme);
+            cache.add(shape, transition.size() - 1, null, transition);
+            slot = addField(transition);
+        }
+        fields[slot] = value;
+    }
+
+    // Moves the instance to a shape with one more field, returning the new field's slot
+    private int addField(Shape newShape) {
+        var slot = newShape.size() - 1;
+        if (slot == fields.length) {
+            fields = Arrays.copyOf(fields, Math.max(fields.length * 2, 4));
+            // Later instances of the class start with enough room for as many fields as this one has
+            klass.expectedFields = Math.max(klass.expectedFields, slot + 1);
+        }
+        shape = newShape;
+        return slot;
     }
 }
@@ -0,0 +1,751 @@
+package uk.co.lewisod.lox;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static uk.co.lewisod.lox.TokenType.*;
+
+// Simplifies the resolved AST before it's run. Operators with constant operands are folded into literals, and
+// branches and loops that can never run are removed. Anything that would fail at runtime (e.g. dividing by zero) is
+// left alone, so the error still happens when and where it would have. Nodes are only rebuilt when something inside
+// them changes, keeping what the Resolver filled in.
+//
+// Calls to small functions can also be inlined, replacing the call with the expression the function returns. Only
+// functions the Resolver knows a call refers to are inlined, and only if their body is a single return statement that
+// doesn't refer to variables from enclosing functions, so it can run in the caller's frame instead.
+//
+// Loops have arithmetic that gives the same value on every iteration hoisted out of them, and ones that count a local
+// up or down by a constant are turned into a Stmt.For.
+public class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    // The most nodes an inlined function's return value can have, including the bodies of calls inlined into it
+    private static final int INLINE_BUDGET = 32;
+
+    private final boolean inline;
+    // The slots of the function being optimized. Inlined calls are given slots after the Resolver's ones for the
+    // callee's parameters, handed out like a stack as they're only used while the call's being evaluated.
+    private int nextSlot;
+    private int slots;
+    // How far the slots of the function being inlined are moved along to fit into the caller's frame
+    private int slotOffset = 0;
+    // Slots below this may hold the values of expressions hoisted out of loops, so can't be used for inlined calls
+    private int hoistedSlots = 0;
+    // Functions whose bodies are being optimized or inlined, which can't be inlined into themselves
+    private final Set<Stmt.Function> enclosingFunctions = new HashSet<>();
+    // The loops in the current function around what's being optimized, outermost first
+    private List<Loop> loops = new ArrayList<>();
+    // The call the return statement being optimized makes in tail position, if it does
+    private Expr.Call tailCall = null;
+
+    // What a loop might change while it runs, to work out which expressions inside it give the same value every time.
+    // A call could change any variable except the caller's own locals.
+    private static class Loop {
+        final Set<Integer> slots = new HashSet<>();
+        final Set<Integer> upvalues = new HashSet<>();
+        final Set<Integer> globals = new HashSet<>();
+        boolean calls = false;
+        // Clear the slots of expressions hoisted out of the loop before it starts
+        final List<Stmt> resets = new ArrayList<>();
+
+        void scan(Stmt stmt) {
+            if (stmt instanceof Stmt.Block block) {
+                block.statements.forEach(this::scan);
+            } else if (stmt instanceof Stmt.Class klass) {
+                declare(klass.slot);
+                if (klass.superclass != null) {
+                    slots.add(klass.superSlot);
+                }
+            } else if (stmt instanceof Stmt.Expression expression) {
+                scan(expression.expression);
+            } else if (stmt instanceof Stmt.For loop) {
+                slots.add(loop.counter.index);
+                scan(loop.loop);
+            } else if (stmt instanceof Stmt.Function function) {
+                // Declaring a function doesn't run its body
+                declare(function.slot);
+            } else if (stmt instanceof Stmt.If ifStmt) {
+                scan(ifStmt.condition);
+                scan(ifStmt.thenBranch);
+                if (ifStmt.elseBranch != null) scan(ifStmt.elseBranch);
+            } else if (stmt instanceof Stmt.Print print) {
+                scan(print.expression);
+            } else if (stmt instanceof Stmt.Return returnStmt) {
+                if (returnStmt.value != null) scan(returnStmt.value);
+            } else if (stmt instanceof Stmt.Var var) {
+                declare(var.slot);
+                if (var.initializer != null) scan(var.initializer);
+            } else if (stmt instanceof Stmt.While loop) {
+                scan(loop.condition);
+                scan(loop.body);
+            }
+        }
+
+        // Globals are only declared at the top level rather than in loops, but if one was it could be anything
+        private void declare(int slot) {
+            if (slot == -1) {
+                calls = true;
+            } else {
+                slots.add(slot);
+            }
+        }
+
+        void scan(Expr expr) {
+            if (expr instanceof Expr.Assign assign) {
+                switch (assign.binding) {
+                    case LOCAL, CELL -> slots.add(assign.index);
+                    case UPVALUE -> upvalues.add(assign.index);
+                    case GLOBAL -> globals.add(assign.index);
+                }
+                scan(assign.value);
+            } else if (expr instanceof Expr.Binary binary) {
+                scan(binary.left);
+                scan(binary.right);
+            } else if (expr instanceof Expr.Call call) {
+                calls = true;
+                scan(call.callee);
+                call.arguments.forEach(this::scan);
+            } else if (expr instanceof Expr.Get get) {
+                scan(get.object);
+            } else if (expr instanceof Expr.Set set) {
+                scan(set.object);
+                scan(set.value);
+            } else if (expr instanceof Expr.Grouping grouping) {
+                scan(grouping.expression);
+            } else if (expr instanceof Expr.Inline inlined) {
+                for (var i = 0; i < inlined.arguments.size(); i++) {
+                    slots.add(inlined.firstSlot + i);
+                }
+                inlined.arguments.forEach(this::scan);
+                scan(inlined.body);
+            } else if (expr instanceof Expr.Logical logical) {
+                scan(logical.left);
+                scan(logical.right);
+            } else if (expr instanceof Expr.Unary unary) {
+                scan(unary.right);
+            }
+        }
+
+        // Whether the expression only reads variables the loop doesn't change, using operators that always give the
+        // same result for the same operands
+        boolean isInvariant(Expr expr) {
+            if (expr instanceof Expr.Variable variable) {
+                return switch (variable.binding) {
+                    case LOCAL -> !slots.contains(variable.index);
+                    case CELL -> !calls && !slots.contains(variable.index);
+                    case UPVALUE -> !calls && !upvalues.contains(variable.index);
+                    case GLOBAL -> !calls && !globals.contains(variable.index);
+                };
+            }
+            if (expr instanceof Expr.Binary binary) return isInvariant(binary.left) && isInvariant(binary.right);
+            if (expr instanceof Expr.Logical logical) return isInvariant(logical.left) && isInvariant(logical.right);
+            if (expr instanceof Expr.Unary unary) return isInvariant(unary.right);
+            if (expr instanceof Expr.Grouping grouping) return isInvariant(grouping.expression);
+            return expr instanceof Expr.Literal;
+        }
+    }
+
+    public Optimizer(int scriptSlots, boolean inline) {
+        this.inline = inline;
+        this.nextSlot = scriptSlots;
+        this.slots = scriptSlots;
+    }
+
+    public List<Stmt> optimize(List<Stmt> statements) {
+        return optimizeAll(statements);
+    }
+
+    // How many slots the top-level script needs, including any for calls inlined into it
+    public int scriptSlots() {
+        return slots;
+    }
+
+    private List<Stmt> optimizeAll(List<Stmt> statements) {
+        var optimized = new ArrayList<Stmt>(statements.size());
+        for (var statement : statements) {
+            var result = optimize(statement);
+            // Blocks don't get their own environment, so ones nested directly inside others can be flattened
+            if (result instanceof Stmt.Block block) {
+                optimized.addAll(block.statements);
+            } else if (result != null) {
+                optimized.add(result);
+            }
+
+            // Nothing after a return can run
+            if (!optimized.isEmpty() && optimized.get(optimized.size() - 1) instanceof Stmt.Return) {
+                break;
+            }
+        }
+        return optimized;
+    }
+
+    // Statements that can be removed altogether come back as null
+    private Stmt optimize(Stmt statement) {
+        return statement.accept(this);
+    }
+
+    // For statements that have to be there, e.g. the body of a loop
+    private Stmt optimizeBranch(Stmt statement) {
+        var result = optimize(statement);
+        return result == null ? new Stmt.Block(List.of()) : result;
+    }
+
+    private Expr optimize(Expr expression) {
+        for (var loop : loops) {
+            if (isArithmetic(expression) && loop.isInvariant(expression)) {
+                return hoist(expression, loop);
+            }
+        }
+        return expression.accept(this);
+    }
+
+    private static boolean isArithmetic(Expr expr) {
+        if (expr instanceof Expr.Binary binary) {
+            return switch (binary.operator.type) {
+                case PLUS, MINUS, STAR, SLASH -> true;
+                default -> false;
+            };
+        }
+        return expr instanceof Expr.Unary unary && unary.operator.type == MINUS;
+    }
+
+    // Has the loop only evaluate the expression the first time it's needed, keeping the value in a slot of its own.
+    // That way it still fails when and where it would have, e.g. if it's never reached. The value of arithmetic is
+    // never falsey, so "slot or (slot = expression)" does that without needing a node of its own.
+    private Expr hoist(Expr expression, Loop loop) {
+        var enclosingLoops = loops;
+        loops = new ArrayList<>();
+        var value = expression.accept(this);
+        loops = enclosingLoops;
+        if (value instanceof Expr.Literal || value instanceof Expr.Variable) {
+            return value;
+        }
+
+        // A slot no inlined call in the loop can share
+        var slot = slots++;
+        hoistedSlots = slots;
+        var line = expression instanceof Expr.Binary binary
+                ? binary.operator.line
+                : ((Expr.Unary) expression).operator.line;
+        var name = new Token(IDENTIFIER, "invariant", null, line);
+
+        var reset = new Stmt.Var(name, null);
+        reset.slot = slot;
+        loop.resets.add(reset);
+        var read = new Expr.Variable(name);
+        read.binding = Binding.LOCAL;
+        read.index = slot;
+        var write = new Expr.Assign(name, value);
+        write.binding = Binding.LOCAL;
+        write.index = slot;
+        return new Expr.Logical(read, new Token(OR, "or", null, line), write);
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        var statements = optimizeAll(stmt.statements);
+        return statements.equals(stmt.statements) ? stmt : new Stmt.Block(statements);
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        for (var method : stmt.methods) {
+            optimize(method);
+        }
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        var expression = optimize(stmt.expression);
+        if (expression instanceof Expr.Literal) {
+            return null;
+        }
+        return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        // Function bodies are always parsed into a list of their own, so can be updated in place. That keeps the
+        // declaration the same, along with everything the Resolver worked out about it.
+        var enclosingNextSlot = nextSlot;
+        var enclosingSlots = slots;
+        var enclosingHoistedSlots = hoistedSlots;
+        var enclosingLoops = loops;
+        nextSlot = stmt.slots;
+        slots = stmt.slots;
+        hoistedSlots = 0;
+        loops = new ArrayList<>();
+        enclosingFunctions.add(stmt);
+
+        var body = optimizeAll(stmt.body);
+        if (!body.equals(stmt.body)) {
+            stmt.body.clear();
+            stmt.body.addAll(body);
+        }
+        stmt.slots = slots;
+
+        enclosingFunctions.remove(stmt);
+        nextSlot = enclosingNextSlot;
+        slots = enclosingSlots;
+        hoistedSlots = enclosingHoistedSlots;
+        loops = enclosingLoops;
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        var condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal literal) {
+            if (Interpreter.isTruthy(literal.value)) {
+                return optimize(stmt.thenBranch);
+            }
+            return stmt.elseBranch == null ? null : optimize(stmt.elseBranch);
+        }
+
+        var thenBranch = optimizeBranch(stmt.thenBranch);
+        var elseBranch = stmt.elseBranch == null ? null : optimize(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) {
+            return stmt;
+        }
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        var expression = optimize(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            return stmt;
+        }
+
+        tailCall = stmt.tailCall ? (Expr.Call) stmt.value : null;
+        var value = optimize(stmt.value);
+        if (value == stmt.value) {
+            return stmt;
+        }
+        var returnStmt = new Stmt.Return(stmt.keyword, value);
+        returnStmt.tailCall = stmt.tailCall && value instanceof Expr.Call;
+        return returnStmt;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) {
+            return stmt;
+        }
+
+        var initializer = optimize(stmt.initializer);
+        if (initializer == stmt.initializer) {
+            return stmt;
+        }
+        var declaration = new Stmt.Var(stmt.name, initializer);
+        declaration.slot = stmt.slot;
+        declaration.cell = stmt.cell;
+        return declaration;
+    }
+
+    // For loops are only made by the optimiser, from loops that have already been optimized
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        var loop = new Loop();
+        loop.scan(stmt.condition);
+        loop.scan(stmt.body);
+        loops.add(loop);
+        var condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal literal && !Interpreter.isTruthy(literal.value)) {
+            loops.remove(loop);
+            return null;
+        }
+        var body = optimizeBranch(stmt.body);
+        loops.remove(loop);
+
+        var optimized = condition == stmt.condition && body == stmt.body ? stmt : new Stmt.While(condition, body);
+        var counted = countedLoop(optimized);
+        if (loop.resets.isEmpty()) {
+            return counted;
+        }
+        var statements = new ArrayList<>(loop.resets);
+        statements.add(counted);
+        return new Stmt.Block(statements);
+    }
+
+    // Recognises a loop that compares a local to a limit, and ends by adding a constant to it, like the ones for
+    // statements are usually written as. Nothing else in the loop can assign to the counter, so it stays a number.
+    private static Stmt countedLoop(Stmt.While loop) {
+        if (!(loop.condition instanceof Expr.Binary condition) || !isComparison(condition.operator.type)
+                || !(condition.left instanceof Expr.Variable counter) || counter.binding != Binding.LOCAL) {
+            return loop;
+        }
+        if (!(loop.body instanceof Stmt.Block block) || block.statements.isEmpty()) {
+            return loop;
+        }
+
+        var step = step(block.statements.get(block.statements.size() - 1), counter.index);
+        if (step == null) {
+            return loop;
+        }
+
+        var body = new Stmt.Block(new ArrayList<>(block.statements.subList(0, block.statements.size() - 1)));
+        var writes = new Loop();
+        writes.scan(condition.right);
+        writes.scan(body);
+        if (writes.slots.contains(counter.index)) {
+            return loop;
+        }
+        return new Stmt.For(loop, counter, condition.operator, condition.right, step, body);
+    }
+
+    // How much the statement adds to the counter, if that's all it does
+    private static Double step(Stmt stmt, int slot) {
+        if (!(stmt instanceof Stmt.Expression expression) || !(expression.expression instanceof Expr.Assign assign)
+                || !isLocal(assign.binding, assign.index, slot) || !(assign.value instanceof Expr.Binary binary)) {
+            return null;
+        }
+        if (!(binary.left instanceof Expr.Variable variable) || !isLocal(variable.binding, variable.index, slot)
+                || !(binary.right instanceof Expr.Literal literal) || !(literal.value instanceof Double amount)) {
+            return null;
+        }
+        // Subtracting a number is the same as adding its negation, even for zeros
+        return switch (binary.operator.type) {
+            case PLUS -> amount;
+            case MINUS -> -amount;
+            default -> null;
+        };
+    }
+
+    private static boolean isComparison(TokenType type) {
+        return type == GREATER || type == GREATER_EQUAL || type == LESS || type == LESS_EQUAL;
+    }
+
+    private static boolean isLocal(Binding binding, int index, int slot) {
+        return binding == Binding.LOCAL && index == slot;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        var value = optimize(expr.value);
+        if (value == expr.value && slot(expr.binding, expr.index) == expr.index) {
+            return expr;
+        }
+        var assign = new Expr.Assign(expr.name, value);
+        assign.binding = expr.binding;
+        assign.index = slot(expr.binding, expr.index);
+        return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        var left = optimize(expr.left);
+        var right = optimize(expr.right);
+        if (left instanceof Expr.Literal a && right instanceof Expr.Literal b) {
+            var folded = fold(expr.operator.type, a.value, b.value);
+            if (folded != null) {
+                return folded;
+            }
+        }
+
+        var simplified = simplify(expr.operator.type, left, right);
+        if (simplified != null) {
+            return simplified;
+        }
+
+        if (left == expr.left && right == expr.right) {
+            return expr;
+        }
+        var binary = new Expr.Binary(left, expr.operator, right);
+        binary.numericLeft = Resolver.producesNumber(left);
+        binary.numericRight = Resolver.producesNumber(right);
+        return binary;
+    }
+
+    // The result of applying the operator to constant operands, or null if doing so would fail
+    private static Expr.Literal fold(TokenType operator, Object left, Object right) {
+        if (operator == EQUAL_EQUAL) {
+            return new Expr.Literal(Interpreter.isEqual(left, right));
+        }
+        if (operator == BANG_EQUAL) {
+            return new Expr.Literal(!Interpreter.isEqual(left, right));
+        }
+        if (operator == PLUS && left instanceof String first && right instanceof String second) {
+            return new Expr.Literal(first + second);
+        }
+        if (!(left instanceof Double a) || !(right instanceof Double b)) {
+            return null;
+        }
+
+        return switch (operator) {
+            case PLUS -> new Expr.Literal(a + b);
+            case MINUS -> new Expr.Literal(a - b);
+            case STAR -> new Expr.Literal(a * b);
+            // The same check as the Interpreter, so dividing by -0 still gives an infinity
+            case SLASH -> Double.compare(b, 0.0) == 0 ? null : new Expr.Literal(a / b);
+            case GREATER -> new Expr.Literal(a > b);
+            case GREATER_EQUAL -> new Expr.Literal(a >= b);
+            case LESS -> new Expr.Literal(a < b);
+            case LESS_EQUAL -> new Expr.Literal(a <= b);
+            default -> null;
+        };
+    }
+
+    // Operations that leave a number unchanged, e.g. multiplying it by one, give back the number. Only operands that
+    // are definitely numbers can be left on their own like that, as the operator would fail for anything else.
+    // Adding zero isn't one of these operations, as -0 + 0 is 0.
+    private static Expr simplify(TokenType operator, Expr left, Expr right) {
+        var leftIsNumber = Resolver.producesNumber(left);
+        var rightIsNumber = Resolver.producesNumber(right);
+        return switch (operator) {
+            case STAR -> {
+                if (leftIsNumber && isNumber(right, 1.0)) yield left;
+                if (rightIsNumber && isNumber(left, 1.0)) yield right;
+                yield null;
+            }
+            case SLASH -> leftIsNumber && isNumber(right, 1.0) ? left : null;
+            case MINUS -> leftIsNumber && isNumber(right, 0.0) ? left : null;
+            default -> null;
+        };
+    }
+
+    private static boolean isNumber(Expr expr, double value) {
+        return expr instanceof Expr.Literal literal && literal.value instanceof Double number
+                && Double.compare(number, value) == 0;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        var callee = optimize(expr.callee);
+        // Inlining a tail call to a function that makes a tail call itself would leave that call in the caller's
+        // return value, where it's no longer in tail position, so mutual recursion would use up the stack
+        if (callee instanceof Expr.Variable variable && canInline(variable.function, expr.arguments.size())
+                && !(expr == tailCall && makesTailCall(variable.function))) {
+            return inline(expr, variable);
+        }
+
+        var arguments = optimizeArguments(expr.arguments);
+        if (callee == expr.callee && arguments.equals(expr.arguments)) {
+            return expr;
+        }
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    private List<Expr> optimizeArguments(List<Expr> arguments) {
+        var optimized = new ArrayList<Expr>(arguments.size());
+        for (var argument : arguments) {
+            optimized.add(optimize(argument));
+        }
+        return optimized;
+    }
+
+    // Whether a call to the function (if the Resolver knows which one it is) can be replaced by its return value. The
+    // arguments have to match up with the parameters, so that calls that fail still do.
+    private boolean canInline(Stmt.Function function, int arguments) {
+        return inline && function != null && function.params.size() == arguments
+                && function.captureIndexes.length == 0 && function.cellParams.length == 0
+                && returnValue(function) != null && size(returnValue(function)) <= INLINE_BUDGET
+                && !enclosingFunctions.contains(function);
+    }
+
+    // Whether an inlinable function's return value is a tail call
+    private static boolean makesTailCall(Stmt.Function function) {
+        return ((Stmt.Return) function.body.get(0)).tailCall;
+    }
+
+    private static Expr returnValue(Stmt.Function function) {
+        if (function.body.size() == 1 && function.body.get(0) instanceof Stmt.Return returnStmt) {
+            return returnStmt.value;
+        }
+        return null;
+    }
+
+    // Evaluates the arguments into slots of the caller's frame instead of an environment of their own, followed by
+    // the function's return value with its locals moved into those slots. If calls inlined into the return value make
+    // it too big, the call is kept.
+    private Expr inline(Expr.Call call, Expr.Variable callee) {
+        var function = callee.function;
+        // Slot zero is left unused by functions, so isn't needed
+        var firstSlot = Math.max(nextSlot, hoistedSlots);
+        nextSlot = firstSlot + function.slots - 1;
+        slots = Math.max(slots, nextSlot);
+        // Evaluating an argument mustn't overwrite the ones before it, so calls inlined into them get later slots
+        var arguments = optimizeArguments(call.arguments);
+
+        // The body's in terms of the callee's slots, so can't be checked against what loops in the caller change
+        var enclosingOffset = slotOffset;
+        var enclosingLoops = loops;
+        slotOffset = firstSlot - 1;
+        loops = new ArrayList<>();
+        enclosingFunctions.add(function);
+        var body = optimize(returnValue(function));
+        enclosingFunctions.remove(function);
+        slotOffset = enclosingOffset;
+        loops = enclosingLoops;
+        nextSlot = firstSlot;
+
+        if (size(body) > INLINE_BUDGET) {
+            return new Expr.Call(callee, call.paren, arguments);
+        }
+        // Reading a global checks it's been defined by the time it's called, but locals always will have been
+        var inlined = new Expr.Inline(function, callee.binding == Binding.GLOBAL ? callee : null, arguments, body);
+        inlined.firstSlot = firstSlot;
+        return inlined;
+    }
+
+    // Where a variable of the function being inlined ends up in the caller
+    private int slot(Binding binding, int index) {
+        return binding == Binding.LOCAL ? index + slotOffset : index;
+    }
+
+    // How many nodes make up the expression
+    private static int size(Expr expr) {
+        if (expr instanceof Expr.Assign assign) return 1 + size(assign.value);
+        if (expr instanceof Expr.Binary binary) return 1 + size(binary.left) + size(binary.right);
+        if (expr instanceof Expr.Call call) return 1 + size(call.callee) + sizeAll(call.arguments);
+        if (expr instanceof Expr.Get get) return 1 + size(get.object);
+        if (expr instanceof Expr.Set set) return 1 + size(set.object) + size(set.value);
+        if (expr instanceof Expr.Grouping grouping) return size(grouping.expression);
+        if (expr instanceof Expr.Inline inlined) return 1 + sizeAll(inlined.arguments) + size(inlined.body);
+        if (expr instanceof Expr.Logical logical) return 1 + size(logical.left) + size(logical.right);
+        if (expr instanceof Expr.Unary unary) return 1 + size(unary.right);
+        return 1;
+    }
+
+    private static int sizeAll(List<Expr> exprs) {
+        var size = 0;
+        for (var expr : exprs) {
+            size += size(expr);
+        }
+        return size;
+    }
+
+    // Calls inlined into a function that's then inlined somewhere else get moved along with the rest of its slots
+    @Override
+    public Expr visitInlineExpr(Expr.Inline expr) {
+        var arguments = optimizeArguments(expr.arguments);
+        var body = optimize(expr.body);
+        var firstSlot = slot(Binding.LOCAL, expr.firstSlot);
+        if (arguments.equals(expr.arguments) && body == expr.body && firstSlot == expr.firstSlot) {
+            return expr;
+        }
+        var inlined = new Expr.Inline(expr.function, expr.callee, arguments, body);
+        inlined.firstSlot = firstSlot;
+        return inlined;
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        var object = optimize(expr.object);
+        return object == expr.object ? expr : new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        var object = optimize(expr.object);
+        var value = optimize(expr.value);
+        return object == expr.object && value == expr.value ? expr : new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    // Grouping only matters to the parser
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        return optimize(expr.expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        var left = optimize(expr.left);
+        if (left instanceof Expr.Literal literal) {
+            // "or" gives the left operand if it's truthy, and "and" if it isn't, without evaluating the right one
+            if (Interpreter.isTruthy(literal.value) == (expr.operator.type == OR)) {
+                return left;
+            }
+            return optimize(expr.right);
+        }
+
+        var right = optimize(expr.right);
+        if (left == expr.left && right == expr.right) {
+            return expr;
+        }
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        var right = optimize(expr.right);
+        var operator = expr.operator.type;
+        if (right instanceof Expr.Literal literal) {
+            if (operator == BANG) {
+                return new Expr.Literal(!Interpreter.isTruthy(literal.value));
+            }
+            if (literal.value instanceof Double number) {
+                return new Expr.Literal(-number);
+            }
+        }
+
+        // Negating twice gives back the same number, and not-ing twice the same boolean
+        if (right instanceof Expr.Unary inner && inner.operator.type == operator) {
+            if (operator == MINUS && Resolver.producesNumber(inner.right)) {
+                return inner.right;
+            }
+            if (operator == BANG && producesBoolean(inner.right)) {
+                return inner.right;
+            }
+        }
+
+        if (right == expr.right) {
+            return expr;
+        }
+        var unary = new Expr.Unary(expr.operator, right);
+        unary.numericRight = Resolver.producesNumber(right);
+        return unary;
+    }
+
+    private static boolean producesBoolean(Expr expr) {
+        if (expr instanceof Expr.Binary binary) {
+            return switch (binary.operator.type) {
+                case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL, EQUAL_EQUAL, BANG_EQUAL -> true;
+                default -> false;
+            };
+        }
+        if (expr instanceof Expr.Unary unary) {
+            return unary.operator.type == BANG;
+        }
+        return expr instanceof Expr.Literal literal && literal.value instanceof Boolean;
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        var index = slot(expr.binding, expr.index);
+        if (index == expr.index) {
+            return expr;
+        }
+        var variable = new Expr.Variable(expr.name);
+        variable.binding = expr.binding;
+        variable.index = index;
+        variable.function = expr.function;
+        return variable;
+    }
+}
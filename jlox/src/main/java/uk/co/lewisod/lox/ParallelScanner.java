@@ -0,0 +1,154 @@
+package uk.co.lewisod.lox;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+// Scans a large source up front on several threads. The source is split into chunks at line breaks, and each chunk is
+// scanned (on the fork/join common pool) as if it starts between tokens. That's right unless the chunk starts inside a
+// string, as strings are the only tokens that can span lines (comments end with their line), and whether it does
+// depends on all the chunks before it. So the chunks are joined up in order afterwards, and a chunk that turns out to
+// start inside a string is scanned again from the start of the string. The tokens, lines and errors come out the same
+// as when scanning the source in one go, with the errors reported as the Parser reaches them.
+public class ParallelScanner implements TokenStream {
+    // Sources smaller than this are quicker to scan on one thread
+    public static final int MIN_SOURCE_SIZE = 1024 * 1024;
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    private final Tokens tokens;
+    private final List<Error> errors = new ArrayList<>();
+    private int next = 0;
+    private int nextError = 0;
+
+    // A lexical error to report just before the token at the given position is handed out
+    private record Error(int before, int line, String message) {}
+
+    public ParallelScanner(ByteBuffer source, Symbols symbols) {
+        tokens = new Tokens(source, symbols);
+
+        var bounds = split(source);
+        var chunks = IntStream.range(0, bounds.length - 1)
+                .parallel()
+                .mapToObj(i -> new Chunk(source, bounds[i], bounds[i + 1]).scan())
+                .toList();
+
+        // The number of lines before the start of the chunk being joined on
+        var lineOffset = 0;
+        var chunk = chunks.get(0);
+        var index = 1;
+        while (true) {
+            var chunkTokens = chunk.tokens();
+            // Only the EOF at the end of the last chunk is kept
+            var count = chunk.isLast ? chunkTokens.size() : chunkTokens.size() - 1;
+            for (var error : chunk.errors) {
+                errors.add(new Error(tokens.size() + error.before, error.line + lineOffset, error.message));
+            }
+            tokens.addAll(chunkTokens, count, chunk.offset, lineOffset);
+            if (chunk.isLast) break;
+
+            var following = chunks.get(index++);
+            if (chunk.openString >= 0) {
+                // The following chunks really start inside this string, so scan again from where the string starts to
+                // the end of the chunk it's closed in. Skipping straight there means a long string is only scanned
+                // again once, rather than once for every chunk it spans.
+                var close = closingQuote(source, chunk.end);
+                while (!following.isLast && following.end <= close) {
+                    following = chunks.get(index++);
+                }
+                lineOffset += chunk.openStringLine - 1;
+                chunk = new Chunk(source, chunk.openString, following.end).scan();
+            } else {
+                lineOffset += chunk.line() - 1;
+                chunk = following;
+            }
+        }
+    }
+
+    @Override
+    public Tokens tokens() {
+        return tokens;
+    }
+
+    @Override
+    public int nextToken() {
+        var position = next++;
+        while (nextError < errors.size() && errors.get(nextError).before <= position) {
+            var error = errors.get(nextError++);
+            Lox.error(error.line, error.message);
+        }
+        return position;
+    }
+
+    // Where the first quote from start onwards is, or the end of the source if there isn't one
+    private static int closingQuote(ByteBuffer source, int start) {
+        var end = source.limit();
+        for (var i = start; i < end; i++) {
+            if (source.get(i) == '"') return i;
+        }
+        return end;
+    }
+
+    // The offsets the chunks start at, followed by the end of the source. Every chunk but the first starts a line.
+    private static int[] split(ByteBuffer source) {
+        var bounds = new ArrayList<Integer>();
+        bounds.add(0);
+        var end = source.limit();
+        var bound = CHUNK_SIZE;
+        while (bound < end) {
+            while (bound < end && source.get(bound - 1) != '\n') bound++;
+            if (bound < end) {
+                bounds.add(bound);
+            }
+            bound += CHUNK_SIZE;
+        }
+        bounds.add(end);
+        return bounds.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    // Scans part of the source into its own Tokens, with offsets and lines relative to the start of the chunk. Errors
+    // are kept to report later, and a string left open by the end of the chunk isn't an error unless it's the end of
+    // the whole source.
+    private static class Chunk extends Scanner {
+        final int offset;
+        final int end;
+        final boolean isLast;
+        final List<Error> errors = new ArrayList<>();
+        // Where a string still open at the end of the chunk starts in the source (or -1), and the chunk's line it's on
+        int openString = -1;
+        int openStringLine;
+
+        Chunk(ByteBuffer source, int offset, int end) {
+            this(source.slice(offset, end - offset), offset, end, end == source.limit());
+        }
+
+        private Chunk(ByteBuffer slice, int offset, int end, boolean isLast) {
+            super(slice, new Tokens(slice, null));
+            this.offset = offset;
+            this.end = end;
+            this.isLast = isLast;
+        }
+
+        Chunk scan() {
+            while (tokens().type(nextToken()) != TokenType.EOF) {
+                // Keep scanning
+            }
+            return this;
+        }
+
+        @Override
+        void error(int line, String message) {
+            errors.add(new Error(tokens().size(), line, message));
+        }
+
+        @Override
+        void unterminatedString(int start, int line) {
+            if (isLast) {
+                super.unterminatedString(start, line);
+            } else {
+                openString = offset + start;
+                openStringLine = line;
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package uk.co.lewisod.lox;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import static uk.co.lewisod.lox.TokenType.*;
@@ -8,11 +9,61 @@ import static uk.co.lewisod.lox.TokenType.*;
 public class Parser {
     private static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;
-    private int current = 0;
+    // How tightly operators bind, loosest first
+    private enum Precedence {
+        NONE, ASSIGNMENT, OR, AND, EQUALITY, COMPARISON, TERM, FACTOR, UNARY, CALL;
 
-    public Parser(List<Token> tokens) {
-        this.tokens = tokens;
+        private static final Precedence[] VALUES = values();
+
+        Precedence next() {
+            return VALUES[ordinal() + 1];
+        }
+    }
+
+    // The precedence of each type of token when it follows an operand, indexed by the type's ordinal. Tokens that
+    // can't continue an expression have NONE, which stops the expression there.
+    private static final Precedence[] INFIX_PRECEDENCE = new Precedence[TokenType.values().length];
+
+    static {
+        Arrays.fill(INFIX_PRECEDENCE, Precedence.NONE);
+        INFIX_PRECEDENCE[EQUAL.ordinal()] = Precedence.ASSIGNMENT;
+        INFIX_PRECEDENCE[OR.ordinal()] = Precedence.OR;
+        INFIX_PRECEDENCE[AND.ordinal()] = Precedence.AND;
+        INFIX_PRECEDENCE[BANG_EQUAL.ordinal()] = Precedence.EQUALITY;
+        INFIX_PRECEDENCE[EQUAL_EQUAL.ordinal()] = Precedence.EQUALITY;
+        INFIX_PRECEDENCE[GREATER.ordinal()] = Precedence.COMPARISON;
+        INFIX_PRECEDENCE[GREATER_EQUAL.ordinal()] = Precedence.COMPARISON;
+        INFIX_PRECEDENCE[LESS.ordinal()] = Precedence.COMPARISON;
+        INFIX_PRECEDENCE[LESS_EQUAL.ordinal()] = Precedence.COMPARISON;
+        INFIX_PRECEDENCE[MINUS.ordinal()] = Precedence.TERM;
+        INFIX_PRECEDENCE[PLUS.ordinal()] = Precedence.TERM;
+        INFIX_PRECEDENCE[SLASH.ordinal()] = Precedence.FACTOR;
+        INFIX_PRECEDENCE[STAR.ordinal()] = Precedence.FACTOR;
+        INFIX_PRECEDENCE[LEFT_PAREN.ordinal()] = Precedence.CALL;
+        INFIX_PRECEDENCE[DOT.ordinal()] = Precedence.CALL;
+    }
+
+    // Tokens are pulled from the Scanner one at a time as the parser needs them, so only the current token and the
+    // one before it are ever kept. They're referred to by position, and only made into Token objects when they're
+    // needed for the AST or an error.
+    private final TokenStream scanner;
+    private final Tokens tokens;
+    private int previous = -1;
+    private int current;
+    // Resolves the program as it's parsed, rather than walking the whole AST again afterwards. Each part of the
+    // program is passed to the Resolver as soon as the parser has enough of it, in the order the Resolver would visit
+    // it in. Dropped after a syntax error, as a program that doesn't parse is never resolved.
+    private Resolver resolver;
+
+    public Parser(TokenStream scanner) {
+        this(scanner, null);
+    }
+
+    public Parser(TokenStream scanner, Resolver resolver) {
+        this.scanner = scanner;
+        this.tokens = scanner.tokens();
+        this.current = scanner.nextToken();
+        this.resolver = resolver;
     }
 
     // program   -> declaration* EOF ;
@@ -21,6 +72,7 @@ public class Parser {
         while (!isAtEnd()) {
             statements.add(declaration());
         }
+        if (resolver != null) resolver.finish();
         return statements;
     }
 
@@ -43,25 +95,28 @@ public class Parser {
 
         Expr.Variable superclass = null;
         if (match(LESS)) {
-            consume(IDENTIFIER, "Expect superclass name.");
+            expect(IDENTIFIER, "Expect superclass name.");
             superclass = new Expr.Variable(previous());
         }
+        if (resolver != null) resolver.beginClass(name, superclass);
 
-        consume(LEFT_BRACE, "Expect '{' before class body.");
+        expect(LEFT_BRACE, "Expect '{' before class body.");
         var methods = new ArrayList<Stmt.Function>();
         while (!check(RIGHT_BRACE) && !isAtEnd()) {
             methods.add(function("method"));
         }
-        consume(RIGHT_BRACE, "Expect '}' after class body.");
+        expect(RIGHT_BRACE, "Expect '}' after class body.");
 
-        return new Stmt.Class(name, superclass, methods);
+        var klass = new Stmt.Class(name, superclass, methods);
+        if (resolver != null) resolver.endClass(klass);
+        return klass;
     }
 
     // funDeclaration -> "fun" function ;
     // function -> IDENTIFIER "(" parameters? ")" block ;
     private Stmt.Function function(String kind) {
         var name = consume(IDENTIFIER, "Expect " + kind + " name.");
-        consume(LEFT_PAREN, "Expect '(' after " + kind + " name.");
+        expect(LEFT_PAREN, "Expect '(' after " + kind + " name.");
 
         var parameters = new ArrayList<Token>();
         if (!check(RIGHT_PAREN)) {
@@ -73,27 +128,33 @@ public class Parser {
                 parameters.add(consume(IDENTIFIER, "Expect parameter name."));
             } while (match(COMMA));
         }
-        consume(RIGHT_PAREN, "Expect ')' after parameters.");
+        expect(RIGHT_PAREN, "Expect ')' after parameters.");
 
         // Consuming the left brace here as opposed to in block() let's us report a more useful error message,
         // since we know we're in the middle of a function declaration
-        consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
+        expect(LEFT_BRACE, "Expect '{' before " + kind + " body.");
+        if (resolver != null) resolver.beginFunction(name, parameters, kind.equals("method"));
         var body = block();
-        return new Stmt.Function(name, parameters, body);
+        var function = new Stmt.Function(name, parameters, body);
+        if (resolver != null) resolver.endFunction(function);
+        return function;
     }
 
 
     // varDeclaration -> "var" IDENTIFIER ( "=" expression )? ";" ;
     private Stmt varDeclaration() {
         var name = consume(IDENTIFIER, "Expect variable name.");
+        if (resolver != null) resolver.beginVar(name);
 
         Expr initializer = null;
         if (match(EQUAL)) {
             initializer = expression();
         }
 
-        consume(SEMICOLON, "Expect ';' after variable declaration");
-        return new Stmt.Var(name, initializer);
+        expect(SEMICOLON, "Expect ';' after variable declaration");
+        var stmt = new Stmt.Var(name, initializer);
+        if (resolver != null) resolver.endVar(stmt);
+        return stmt;
     }
 
     // statement -> exprStmt | forStmt | ifStmt | printStmt | returnStmt | whileStmt | block ;
@@ -103,31 +164,43 @@ public class Parser {
         if (match(PRINT)) return printStatement();
         if (match(RETURN)) return returnStmt();
         if (match(WHILE)) return whileStatement();
-        if (match(LEFT_BRACE)) return new Stmt.Block(block());
+        if (match(LEFT_BRACE)) return blockStatement();
         return expressionStatement();
     }
 
+    private Stmt blockStatement() {
+        if (resolver != null) resolver.beginScope();
+        var statements = block();
+        if (resolver != null) resolver.endScope();
+        return new Stmt.Block(statements);
+    }
+
     // printStmt -> "print" expression ";" ;
     private Stmt printStatement() {
         var value = expression();
-        consume(SEMICOLON, "Expect ';' after value.");
+        expect(SEMICOLON, "Expect ';' after value.");
         return new Stmt.Print(value);
     }
 
     // returnStmt -> "return" expression? ";" ;
     private Stmt returnStmt() {
         var keyword = previous();
+        if (resolver != null) resolver.beginReturn(keyword);
         Expr value = null;
         if (!check(SEMICOLON)) {
             value = expression();
         }
-        consume(SEMICOLON, "Expect ';' after return value.");
-        return new Stmt.Return(keyword, value);
+        expect(SEMICOLON, "Expect ';' after return value.");
+        var stmt = new Stmt.Return(keyword, value);
+        if (resolver != null) resolver.endReturn(stmt);
+        return stmt;
     }
 
     // forStmt -> "for" "(" ( varDecl | exprStmt | ";" ) expression? ";" expression? ")" statement ;
     public Stmt forStatement() {
-        consume(LEFT_PAREN, "Expect '(' after 'for'.");
+        expect(LEFT_PAREN, "Expect '(' after 'for'.");
+        // The Block running the initializer before the loop gives it a scope of its own
+        if (resolver != null && !check(SEMICOLON)) resolver.beginScope();
 
         Stmt initializer;
         if (match(SEMICOLON)) {
@@ -142,15 +215,19 @@ public class Parser {
         if (!check(SEMICOLON)) {
             condition = expression();
         }
-        consume(SEMICOLON, "Expect ';' after loop condition.");
+        expect(SEMICOLON, "Expect ';' after loop condition.");
 
+        var incrementErrors = resolver != null ? resolver.errorCount() : 0;
         Expr increment = null;
         if (!check(RIGHT_PAREN)) {
             increment = expression();
         }
-        consume(RIGHT_PAREN, "Expect ')' after clauses.");
+        expect(RIGHT_PAREN, "Expect ')' after clauses.");
+        // The increment runs after the body, so its errors are reported after the body's
+        var heldErrors = resolver != null ? resolver.takeErrors(incrementErrors) : null;
 
         Stmt body = statement();
+        if (resolver != null) resolver.restoreErrors(heldErrors);
 
         // Desugar the for loop into a while loop
         if (increment != null) {
@@ -162,6 +239,7 @@ public class Parser {
         if (initializer != null) {
             // Run the initializer before the while loop
             loop = new Stmt.Block(List.of(initializer, loop));
+            if (resolver != null) resolver.endScope();
         }
 
         return loop;
@@ -169,9 +247,9 @@ public class Parser {
 
     // ifStmt -> "if" "(" expression ")" statement ( "else" statement )? ;
     private Stmt ifStatement() {
-        consume(LEFT_PAREN, "Expect '(' after 'if'.");
+        expect(LEFT_PAREN, "Expect '(' after 'if'.");
         var condition = expression();
-        consume(RIGHT_PAREN, "Expect ')' after if condition.");
+        expect(RIGHT_PAREN, "Expect ')' after if condition.");
 
         var thenBranch = statement();
         Stmt elseBranch = null;
@@ -184,9 +262,9 @@ public class Parser {
 
     // whileStmt -> "while" "(" expression ")" statement ;
     private Stmt whileStatement() {
-        consume(LEFT_PAREN, "Expect '(' after 'while'.");
+        expect(LEFT_PAREN, "Expect '(' after 'while'.");
         var condition = expression();
-        consume(RIGHT_PAREN, "Expect ')' after condition.");
+        expect(RIGHT_PAREN, "Expect ')' after condition.");
         var body = statement();
 
         return new Stmt.While(condition, body);
@@ -198,150 +276,125 @@ public class Parser {
         while (!check(RIGHT_BRACE) && !isAtEnd()) {
             statements.add(declaration());
         }
-        consume(RIGHT_BRACE, "Expect '}' after block.");
+        expect(RIGHT_BRACE, "Expect '}' after block.");
         return statements;
     }
 
     // exprStmt  -> expression ";" ;
     private Stmt expressionStatement() {
         var value = expression();
-        consume(SEMICOLON, "Expect ';' after expression.");
+        expect(SEMICOLON, "Expect ';' after expression.");
         return new Stmt.Expression(value);
     }
 
     // expression -> assignment ;
     private Expr expression() {
-        return assignment();
+        return parsePrecedence(Precedence.ASSIGNMENT);
     }
 
     // assignment -> ( call "." )? IDENTIFIER "=" assignment | logic_or;
-    private Expr assignment() {
-        var expr = or();
-
-        if (match(EQUAL)) {
-            var equals = previous();
-            var value = assignment();
-
-            if (expr instanceof  Expr.Variable variable) {
-                var name = variable.name;
-                return new Expr.Assign(name, value);
-            } else if (expr instanceof Expr.Get get) {
-                return new Expr.Set(get.object, get.name, value);
-            }
-
-            // Report but don't throw - no need to panic and synchronize
-            error(equals, "Invalid assignment target.");
-        }
-
-        return expr;
-    }
-
     // logic_or -> logic_and ( "or" logic_and )* ;
-    private Expr or() {
-        var expr = and();
-
-        while(match(OR)) {
-            var operator = previous();
-            var right = and();
-            expr = new Expr.Logical(expr, operator, right);
-        }
-        return expr;
-    }
-
     // logic_and -> equality ( "and" equality )* ;
-    private Expr and() {
-        var expr = equality();
-
-        while (match(AND)) {
-            var operator = previous();
-            var right = equality();
-            expr = new Expr.Logical(expr, operator, right);
+    // equality -> comparison ( ( "!=" | "==" ) comparison )* ;
+    // comparison -> term ( ( ">" | ">=" | "<" | "<=" ) term )* ;
+    // term -> factor ( ( "-" | "+" ) factor )* ;
+    // factor -> unary ( ( "/" | "*" ) unary )* ;
+    // call -> primary ( "(" arguments? ")" | "." IDENTIFIER )* ;
+    // Rather than a method for each of these rules, expressions are parsed by precedence climbing: an operand, then
+    // every operator after it that binds at least as tightly as the given precedence. Operators of the same
+    // precedence are taken in a loop, and only their right operands are parsed recursively.
+    private Expr parsePrecedence(Precedence precedence) {
+        var leftErrors = resolver != null ? resolver.errorCount() : 0;
+        var expr = unary();
+        while (INFIX_PRECEDENCE[tokens.type(current).ordinal()].compareTo(precedence) >= 0) {
+            advance();
+            expr = infix(expr, leftErrors);
         }
+        resolveRead(expr);
         return expr;
     }
 
-    // equality -> comparison ( ( "!=" | "==" ) comparison )* ;
-    private Expr equality() {
-        var expr = comparison();
-        while (match(BANG_EQUAL, EQUAL_EQUAL)) {
-            var operator = previous();
-            var right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        return expr;
+    // Parses the rest of an expression after its left operand and the (just consumed) operator following it
+    private Expr infix(Expr left, int leftErrors) {
+        var type = tokens.type(previous);
+        if (type != EQUAL) resolveRead(left);
+        return switch (type) {
+            case EQUAL -> assignment(left, leftErrors);
+            case LEFT_PAREN -> finishCall(left);
+            case DOT -> new Expr.Get(left, consume(IDENTIFIER, "Expected property name after '.'"));
+            case OR, AND -> {
+                var operator = previous();
+                yield new Expr.Logical(left, operator, rightOperand(type));
+            }
+            default -> {
+                var operator = previous();
+                var binary = new Expr.Binary(left, operator, rightOperand(type));
+                if (resolver != null) resolver.analyseOperands(binary);
+                yield binary;
+            }
+        };
     }
 
-    // comparison -> term ( ( ">" | ">=" | "<" | "<=" ) term )* ;
-    private Expr comparison() {
-        var expr = term();
-        while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-            var operator = previous();
-            var right = term();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        return expr;
+    // A variable can't be resolved as soon as it's parsed, as it might turn out to be the target of an assignment
+    // rather than a read. It's resolved once the operator after it (if any) shows it isn't.
+    private void resolveRead(Expr expr) {
+        if (resolver != null && expr instanceof Expr.Variable variable) resolver.resolveRead(variable);
     }
 
-    // term -> factor ( ( "-" | "+" ) factor )* ;
-    private Expr term() {
-        var expr = factor();
-        while (match(MINUS, PLUS)) {
-            var operator = previous();
-            var right = factor();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        return expr;
+    // Binary operators are left-associative, so their right operand can only contain operators binding more tightly
+    private Expr rightOperand(TokenType operator) {
+        return parsePrecedence(INFIX_PRECEDENCE[operator.ordinal()].next());
     }
 
-    // factor -> unary ( ( "/" | "*" ) unary )* ;
-    private Expr factor() {
-        var expr = unary();
-        while (match(SLASH, STAR)) {
-            var operator = previous();
-            var right = unary();
-            expr = new Expr.Binary(expr, operator, right);
+    private Expr assignment(Expr target, int targetErrors) {
+        var equals = previous();
+        // A property's value is resolved before the object it's set on, so the object's errors are reported after
+        // the value's
+        var heldErrors = resolver != null && target instanceof Expr.Get ? resolver.takeErrors(targetErrors) : null;
+        // Assignment is right-associative, so the value can be another assignment
+        var value = parsePrecedence(Precedence.ASSIGNMENT);
+
+        if (target instanceof  Expr.Variable variable) {
+            var name = variable.name;
+            var assign = new Expr.Assign(name, value);
+            if (resolver != null) resolver.resolveAssignment(assign);
+            return assign;
+        } else if (target instanceof Expr.Get get) {
+            if (resolver != null) resolver.restoreErrors(heldErrors);
+            return new Expr.Set(get.object, get.name, value);
         }
-        return expr;
+
+        // Report but don't throw - no need to panic and synchronize
+        error(equals, "Invalid assignment target.");
+        return target;
     }
 
     // unary -> ( "!" | "-" ) unary | call ;
     private Expr unary() {
-        if (match(BANG, MINUS)) {
+        if (match(BANG) || match(MINUS)) {
             var operator = previous();
-            var operand = unary();
-            return new Expr.Unary(operator, operand);
+            var operand = parsePrecedence(Precedence.UNARY);
+            var unary = new Expr.Unary(operator, operand);
+            if (resolver != null) resolver.analyseOperand(unary);
+            return unary;
         }
-        return call();
+        return primary();
     }
 
-    // call -> primary ( "(" arguments? ")" | "." IDENTIFIER )* ;
     // arguments -> expression ( "," expression )* ;
-    private Expr call() {
-        Expr expr = primary();
-
-        while (true) {
-            if (match(LEFT_PAREN)) {
-                var arguments = new ArrayList<Expr>();
-                if (!check(RIGHT_PAREN)) {
-                    do {
-                        if (arguments.size() >= 255) {
-                            // Not throwing exception as syntax is still valid - error is due to language limitations
-                            error(peek(), "Can't have more than 255 arguments");
-                        }
-                        arguments.add(expression());
-                    } while (match(COMMA));
+    private Expr finishCall(Expr callee) {
+        var arguments = new ArrayList<Expr>();
+        if (!check(RIGHT_PAREN)) {
+            do {
+                if (arguments.size() >= 255) {
+                    // Not throwing exception as syntax is still valid - error is due to language limitations
+                    error(peek(), "Can't have more than 255 arguments");
                 }
-                var paren = consume(RIGHT_PAREN, "Expect ')' after arguments.");
-                expr = new Expr.Call(expr, paren, arguments);
-            } else if (match(DOT)) {
-                var name = consume(IDENTIFIER, "Expected property name after '.'");
-                expr = new Expr.Get(expr, name);
-            } else {
-                break;
-            }
+                arguments.add(expression());
+            } while (match(COMMA));
         }
-
-        return expr;
+        var paren = consume(RIGHT_PAREN, "Expect ')' after arguments.");
+        return new Expr.Call(callee, paren, arguments);
     }
 
     // primary -> NUMBER | STRING | "true" | "false" | "nil" | "(" expression ")" | IDENTIFIER | "super" "." IDENTIFIER ;
@@ -350,19 +403,23 @@ public class Parser {
         if (match(TRUE)) return new Expr.Literal(true);
         if (match(NIL)) return new Expr.Literal(null);
 
-        if (match(NUMBER, STRING)) {
+        if (match(NUMBER) || match(STRING)) {
             return new Expr.Literal(previous().literal);
         }
 
         if (match(SUPER)) {
             var keyword = previous();
-            consume(DOT, "Expect '.' after 'super'.");
+            expect(DOT, "Expect '.' after 'super'.");
             var method = consume(IDENTIFIER, "Expect superclass method name.");
-            return new Expr.Super(keyword, method);
+            var expr = new Expr.Super(keyword, method);
+            if (resolver != null) resolver.resolveSuper(expr);
+            return expr;
         }
 
         if (match(THIS)) {
-            return new Expr.This(previous());
+            var expr = new Expr.This(previous());
+            if (resolver != null) resolver.resolveThis(expr);
+            return expr;
         }
 
         if (match(IDENTIFIER)) {
@@ -371,7 +428,7 @@ public class Parser {
 
         if (match(LEFT_PAREN)) {
             var expr = expression();
-            consume(RIGHT_PAREN, "Expect ')' after expression.");
+            expect(RIGHT_PAREN, "Expect ')' after expression.");
             return new Expr.Grouping(expr);
         }
 
@@ -379,12 +436,19 @@ public class Parser {
     }
 
     private Token consume(TokenType type, String message) {
-        if (check(type)) return advance();
-        throw error(peek(), message);
+        expect(type, message);
+        return previous();
+    }
+
+    // Like consume, for tokens that aren't needed afterwards
+    private void expect(TokenType type, String message) {
+        if (!check(type)) throw error(peek(), message);
+        advance();
     }
 
     private ParseError error(Token token, String message) {
         Lox.error(token, message);
+        resolver = null;
         return new ParseError();
     }
 
@@ -392,9 +456,9 @@ public class Parser {
         advance();
 
         while (!isAtEnd()) {
-            if (previous().type == SEMICOLON) return;
+            if (tokens.type(previous) == SEMICOLON) return;
 
-            switch (peek().type) {
+            switch (tokens.type(current)) {
                 case CLASS:
                 case FUN:
                 case VAR:
@@ -410,35 +474,36 @@ public class Parser {
         }
     }
 
-    private boolean match(TokenType... types) {
-        for (var type : types) {
-            if (check(type)) {
-                advance();
-                return true;
-            }
+    private boolean match(TokenType type) {
+        if (check(type)) {
+            advance();
+            return true;
         }
         return false;
     }
 
-    private Token advance() {
-        if (!isAtEnd()) current++;
-        return previous();
+    private void advance() {
+        if (!isAtEnd()) {
+            previous = current;
+            current = scanner.nextToken();
+            tokens.discardBefore(previous);
+        }
     }
 
     private boolean check(TokenType type) {
         if (isAtEnd()) return false;
-        return peek().type == type;
+        return tokens.type(current) == type;
     }
 
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return tokens.type(current) == EOF;
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return tokens.token(current);
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return tokens.token(previous);
     }
 }
@@ -0,0 +1,32 @@
+package uk.co.lewisod.lox;
+
+// An inline cache for a single property access in the program, remembering what it did for the last few shapes of
+// instance it saw, so it can skip looking the property up by name. Gets cache either the field's slot or the method
+// it found (methods can't change once a class is created), and sets cache the shape adding the field leads to.
+public class PropertyCache {
+    // Accesses seeing more shapes than this are left to look properties up the slow way
+    private static final int MAX_SHAPES = 4;
+
+    final Shape[] shapes = new Shape[MAX_SHAPES];
+    final int[] slots = new int[MAX_SHAPES];
+    final LoxFunction[] methods = new LoxFunction[MAX_SHAPES];
+    final Shape[] transitions = new Shape[MAX_SHAPES];
+    int size = 0;
+
+    // The index of the cache entry for the shape, or -1 if there isn't one
+    int find(Shape shape) {
+        for (var i = 0; i < size; i++) {
+            if (shapes[i] == shape) return i;
+        }
+        return -1;
+    }
+
+    void add(Shape shape, int slot, LoxFunction method, Shape transition) {
+        if (size == MAX_SHAPES) return;
+        shapes[size] = shape;
+        slots[size] = slot;
+        methods[size] = method;
+        transitions[size] = transition;
+        size++;
+    }
+}
@@ -1,11 +1,17 @@
 package uk.co.lewisod.lox;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.Set;
 
-// Performs semantic analysis to resolve variable usages to declarations
+// Performs semantic analysis to resolve variable usages to declarations. This can either walk a parsed program, or be
+// given to the Parser, which calls the begin/end methods below as it goes so the program is resolved as it's parsed.
+// Errors are held until reportErrors(), as they're only reported for programs that parsed.
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private enum FunctionType {
         NONE,
@@ -20,13 +26,97 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         SUBCLASS,
     }
 
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
-    private FunctionType currentFunction = FunctionType.NONE;
+    // A function being resolved, or the top-level script. Each call gets a single Environment holding every local
+    // declared anywhere in the function, so blocks never need an Environment of their own.
+    private static class Frame {
+        final Frame enclosing;
+        final FunctionType type;
+        // Variables from enclosing functions that closures of this function need to hold on to, in the order they're
+        // stored in the closure's upvalues
+        final List<Capture> captures = new ArrayList<>();
+        int nextSlot = 0;
+        int slots = 0;
+
+        Frame(Frame enclosing, FunctionType type) {
+            this.enclosing = enclosing;
+            this.type = type;
+        }
+
+        int allocateSlot() {
+            var slot = nextSlot++;
+            slots = Math.max(slots, nextSlot);
+            return slot;
+        }
+    }
+
+    // Where a closure finds a captured variable when it's created, mirroring clox's upvalue descriptors: either a
+    // local of the enclosing function (whose slot will hold an Upvalue), or one of the enclosing closure's upvalues
+    private record Capture(Local local, boolean isLocal, int index) {}
+
+    private static class Scope {
+        final Frame frame;
+        final Map<String, Local> locals = new HashMap<>();
+        // Slots are handed out like a stack, so sibling scopes can reuse them
+        final int firstSlot;
+
+        Scope(Frame frame) {
+            this.frame = frame;
+            this.firstSlot = frame.nextSlot;
+        }
+    }
+
+    // Somewhere the Resolver records how a variable was resolved, e.g. the binding fields of an Expr.Variable
+    private interface BindingTarget {
+        void bind(Binding binding, int index);
+    }
+
+    private static class Local {
+        final Frame frame;
+        final int slot;
+        // The statement declaring the local, which needs to know whether to box it in an Upvalue. Only set once the
+        // whole declaration has been resolved.
+        Stmt declaration = null;
+        boolean defined = false;
+        // Whether a closure refers to the local. Only known for sure once its scope ends, so accesses from its own
+        // function are bound then.
+        boolean captured = false;
+        // Whether the local is ever assigned to. If it isn't, and it's a function, reads of it always give that
+        // function.
+        boolean assigned = false;
+        final List<BindingTarget> accesses = new ArrayList<>();
+        final List<Expr.Variable> reads = new ArrayList<>();
+
+        Local(Frame frame, int slot) {
+            this.frame = frame;
+            this.slot = slot;
+        }
+    }
+
+    // A class being resolved, with the class enclosing it and the slot holding "super" (if it has a superclass)
+    private record ClassScope(ClassType enclosing, int superSlot) {}
+
+    record Error(Token token, String message) {}
+
+    private final Globals globals;
+    // Innermost last, indexed by depth when looking a name up
+    private final List<Scope> scopes = new ArrayList<>();
+    private Frame frame = new Frame(null, FunctionType.NONE);
+    private final Deque<ClassScope> classes = new ArrayDeque<>();
     private ClassType currentClass = ClassType.NONE;
+    private final List<Error> errors = new ArrayList<>();
+    // Functions declared by the top-level script, and the reads of globals that might refer to them. A global can be
+    // assigned anywhere in the script, so reads are only linked to functions once all of it has been resolved.
+    private final Map<String, Stmt.Function> globalFunctions = new HashMap<>();
+    private final Set<String> reassignedGlobals = new HashSet<>();
+    private final List<Expr.Variable> globalReads = new ArrayList<>();
+
+    public Resolver(Globals globals) {
+        this.globals = globals;
+    }
 
-    public Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    // How many slots the top-level script needs for the locals of blocks in the global scope
+    public int scriptSlots() {
+        return frame.slots;
     }
 
     @Override
@@ -39,84 +129,145 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitClassStmt(Stmt.Class stmt) {
+        beginClass(stmt.name, stmt.superclass);
+        for (var method : stmt.methods) {
+            resolveFunction(method, true);
+        }
+        endClass(stmt);
+        return null;
+    }
+
+    // Declares the class, and its superclass's "super" for its methods
+    void beginClass(Token name, Expr.Variable superclass) {
         var enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
-        declare(stmt.name);
-        define(stmt.name);
+        declare(name);
+        define(name);
 
-        if (stmt.superclass != null) {
-            if (stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
-                Lox.error(stmt.superclass.name, "A class can't inherit from itself.");
+        var superSlot = 0;
+        if (superclass != null) {
+            if (name.lexeme.equals(superclass.name.lexeme)) {
+                error(superclass.name, "A class can't inherit from itself.");
             }
             currentClass = ClassType.SUBCLASS;
-            resolve(stmt.superclass);
+            resolveRead(superclass);
 
             beginScope();
-            scopes.peek().put("super", true);
-        }
-
-        beginScope();
-        scopes.peek().put("this", true);
-
-        for (var method : stmt.methods) {
-            var declaration = FunctionType.METHOD;
-            if (method.name.lexeme.equals("init")) {
-                declaration = FunctionType.INITIALIzER;
-            }
-
-            resolveFunction(method, declaration);
+            superSlot = declareKeyword("super");
         }
+        classes.push(new ClassScope(enclosingClass, superSlot));
+    }
 
-        endScope();
+    void endClass(Stmt.Class stmt) {
+        var klass = classes.pop();
         if (stmt.superclass != null) {
+            stmt.superSlot = klass.superSlot();
             endScope();
         }
-        currentClass = enclosingClass;
-        return null;
+        attach(stmt.name, stmt);
+        currentClass = klass.enclosing();
     }
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
-        define(stmt.name);
-        resolveFunction(stmt, FunctionType.FUNCTION);
+        resolveFunction(stmt, false);
         return null;
     }
 
+    // Counted loops are recognised by the optimiser, once the whole script has been resolved
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        throw new IllegalStateException("Counted loop encountered by the resolver");
+    }
+
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        beginVar(stmt.name);
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
-        define(stmt.name);
+        endVar(stmt);
         return null;
     }
 
+    // A variable is declared before its initializer, so the initializer can't refer to it
+    void beginVar(Token name) {
+        declare(name);
+    }
+
+    void endVar(Stmt.Var stmt) {
+        define(stmt.name);
+        attach(stmt.name, stmt);
+    }
+
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            Lox.error(expr.name, "Can't read local variable in it's own initializer");
-        }
-        resolveLocal(expr, expr.name);
+        resolveRead(expr);
         return null;
     }
 
+    void resolveRead(Expr.Variable expr) {
+        if (!scopes.isEmpty() && isDeclaredButUndefined(innermostScope().locals.get(expr.name.lexeme))) {
+            error(expr.name, "Can't read local variable in it's own initializer");
+        }
+        var local = resolveLocal(expr.name.lexeme, (binding, index) -> {
+            expr.binding = binding;
+            expr.index = index;
+        });
+        if (local != null) {
+            local.reads.add(expr);
+        } else {
+            expr.index = globals.indexOf(expr.name.lexeme);
+            globalReads.add(expr);
+        }
+    }
+
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        resolveAssignment(expr);
         return null;
     }
 
-    private void beginScope() {
-        scopes.push(new HashMap<>());
+    void resolveAssignment(Expr.Assign expr) {
+        var local = resolveLocal(expr.name.lexeme, (binding, index) -> {
+            expr.binding = binding;
+            expr.index = index;
+        });
+        if (local != null) {
+            local.assigned = true;
+        } else {
+            expr.index = globals.indexOf(expr.name.lexeme);
+            reassignedGlobals.add(expr.name.lexeme);
+        }
+    }
+
+    private Scope innermostScope() {
+        return scopes.get(scopes.size() - 1);
+    }
+
+    void beginScope() {
+        scopes.add(new Scope(frame));
     }
 
     public void resolve(List<Stmt> statements) {
         for (var statement : statements) {
             resolve(statement);
         }
+
+        if (scopes.isEmpty()) {
+            finish();
+        }
+    }
+
+    // Called once the whole script has been resolved. A global can be assigned anywhere in the script, so reads of
+    // globals are only linked to the functions they refer to now.
+    void finish() {
+        for (var read : globalReads) {
+            if (!reassignedGlobals.contains(read.name.lexeme)) {
+                read.function = globalFunctions.get(read.name.lexeme);
+            }
+        }
     }
 
     private void resolve(Stmt statement) {
@@ -127,58 +278,208 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         expression.accept(this);
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    // Returns null if the name isn't declared in any enclosing scope, so must be a global
+    private Local resolveLocal(String name, BindingTarget target) {
         for (var i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+            var local = scopes.get(i).locals.get(name);
+            if (local == null) continue;
+
+            if (local.frame == frame) {
+                local.accesses.add(target);
+            } else {
+                local.captured = true;
+                target.bind(Binding.UPVALUE, resolveUpvalue(frame, local));
+            }
+            return local;
+        }
+        return null;
+    }
+
+    // Adds the local to the upvalues of the given function, and of every function between it and the local's
+    private static int resolveUpvalue(Frame frame, Local local) {
+        if (local.frame == frame.enclosing) {
+            return addCapture(frame, local, true, local.slot);
+        }
+
+        var index = resolveUpvalue(frame.enclosing, local);
+        return addCapture(frame, local, false, index);
+    }
+
+    private static int addCapture(Frame frame, Local local, boolean isLocal, int index) {
+        for (var i = 0; i < frame.captures.size(); i++) {
+            if (frame.captures.get(i).local == local) {
+                return i;
             }
         }
+
+        frame.captures.add(new Capture(local, isLocal, index));
+        return frame.captures.size() - 1;
     }
 
-    private void resolveFunction(Stmt.Function function, FunctionType type) {
-        var enclosingFunction = currentFunction;
-        currentFunction = type;
+    private void resolveFunction(Stmt.Function function, boolean isMethod) {
+        beginFunction(function.name, function.params, isMethod);
+        resolve(function.body);
+        endFunction(function);
+    }
+
+    // Declares the function (unless it's a method) and its parameters. The body is resolved in the same scope as the
+    // parameters.
+    void beginFunction(Token name, List<Token> params, boolean isMethod) {
+        var type = FunctionType.FUNCTION;
+        if (isMethod) {
+            type = name.lexeme.equals("init") ? FunctionType.INITIALIzER : FunctionType.METHOD;
+        } else {
+            declare(name);
+            define(name);
+        }
+        frame = new Frame(frame, type);
 
         beginScope();
-        for (var param : function.params) {
+        // Like clox, slot zero holds the receiver for methods, and is left unused by other functions
+        if (isMethod) {
+            declareKeyword("this");
+        } else {
+            frame.allocateSlot();
+        }
+        for (var param : params) {
             declare(param);
             define(param);
         }
-        resolve(function.body);
+    }
+
+    void endFunction(Stmt.Function function) {
+        // Parameters (and "this") are bound by the call rather than a declaration, so the function itself needs to
+        // know which ones to box
+        function.cellParams = innermostScope().locals.values().stream()
+                .filter(local -> local.captured && local.declaration == null)
+                .mapToInt(local -> local.slot)
+                .toArray();
         endScope();
-        currentFunction = enclosingFunction;
+
+        function.slots = frame.slots;
+        function.capturesLocal = new boolean[frame.captures.size()];
+        function.captureIndexes = new int[frame.captures.size()];
+        for (var i = 0; i < frame.captures.size(); i++) {
+            function.capturesLocal[i] = frame.captures.get(i).isLocal;
+            function.captureIndexes[i] = frame.captures.get(i).index;
+        }
+
+        var isMethod = frame.type != FunctionType.FUNCTION;
+        frame = frame.enclosing;
+        if (!isMethod) {
+            attach(function.name, function);
+        }
     }
 
+    // Globals are only declared once their declaration is known, by attach()
     private void declare(Token name) {
         if (scopes.isEmpty()) return;
 
-        var scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
-            Lox.error(name, "Already a variable with this name in this scope.");
+        var scope = innermostScope();
+        if (scope.locals.containsKey(name.lexeme)) {
+            error(name, "Already a variable with this name in this scope.");
+        }
+
+        scope.locals.put(name.lexeme, new Local(frame, frame.allocateSlot()));
+    }
+
+    // Records the statement declaring a variable, once all of it has been resolved
+    private void attach(Token name, Stmt declaration) {
+        if (scopes.isEmpty()) {
+            declareGlobal(name, declaration);
+        } else {
+            innermostScope().locals.get(name.lexeme).declaration = declaration;
         }
+    }
 
-        scope.put(name.lexeme, false);
+    // A global is only linked to a function if that's the one thing it's declared as. One that already has a value
+    // (e.g. a native function) could still be read before the declaration replaces it.
+    private void declareGlobal(Token name, Stmt declaration) {
+        if (declaration instanceof Stmt.Function function && !globalFunctions.containsKey(name.lexeme)
+                && !globals.isDefined(name.lexeme)) {
+            globalFunctions.put(name.lexeme, function);
+        } else {
+            reassignedGlobals.add(name.lexeme);
+        }
     }
 
     private void define(Token name) {
         if (scopes.isEmpty()) return;
 
-        var scope = scopes.peek();
-        scope.put(name.lexeme, true);
+        var scope = innermostScope();
+        scope.locals.get(name.lexeme).defined = true;
+    }
+
+    // Declares a local that's bound by the interpreter rather than the user, e.g. "this", returning its slot
+    private int declareKeyword(String keyword) {
+        var local = new Local(frame, frame.allocateSlot());
+        local.defined = true;
+        innermostScope().locals.put(keyword, local);
+        return local.slot;
+    }
+
+    private static boolean isDeclaredButUndefined(Local local) {
+        return local != null && !local.defined;
     }
 
-    private void endScope() {
-        scopes.pop();
+    void endScope() {
+        var scope = scopes.remove(scopes.size() - 1);
+
+        // Nothing outside the scope can refer to its locals, so we now know which ones closures have captured
+        for (var local : scope.locals.values()) {
+            var binding = local.captured ? Binding.CELL : Binding.LOCAL;
+            for (var access : local.accesses) {
+                access.bind(binding, local.slot);
+            }
+
+            if (local.declaration instanceof Stmt.Var var) {
+                var.slot = local.slot;
+                var.cell = local.captured;
+            } else if (local.declaration instanceof Stmt.Function function) {
+                function.slot = local.slot;
+                function.cell = local.captured;
+                if (!local.assigned) {
+                    for (var read : local.reads) {
+                        read.function = function;
+                    }
+                }
+            } else if (local.declaration instanceof Stmt.Class klass) {
+                klass.slot = local.slot;
+                klass.cell = local.captured;
+            }
+        }
+        scope.frame.nextSlot = scope.firstSlot;
     }
 
     @Override
     public Void visitBinaryExpr(Expr.Binary expr) {
         resolve(expr.left);
         resolve(expr.right);
+        analyseOperands(expr);
         return null;
     }
 
+    void analyseOperands(Expr.Binary expr) {
+        expr.numericLeft = producesNumber(expr.left);
+        expr.numericRight = producesNumber(expr.right);
+    }
+
+    // Whether an expression always evaluates to a number (or fails), which lets the Interpreter evaluate it without
+    // boxing the result. Unlike the rest of the operators, these never produce anything else.
+    static boolean producesNumber(Expr expr) {
+        if (expr instanceof Expr.Binary binary) {
+            var type = binary.operator.type;
+            return type == TokenType.MINUS || type == TokenType.SLASH || type == TokenType.STAR;
+        }
+        if (expr instanceof Expr.Unary unary) {
+            return unary.operator.type == TokenType.MINUS;
+        }
+        if (expr instanceof Expr.Grouping grouping) {
+            return producesNumber(grouping.expression);
+        }
+        return expr instanceof Expr.Literal literal && literal.value instanceof Double;
+    }
+
     @Override
     public Void visitCallExpr(Expr.Call expr) {
         resolve(expr.callee);
@@ -204,23 +505,42 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitSuperExpr(Expr.Super expr) {
+        resolveSuper(expr);
+        return null;
+    }
+
+    void resolveSuper(Expr.Super expr) {
         if (currentClass == ClassType.NONE) {
-            Lox.error(expr.keyword, "Can't user 'super' outside of a class.");
+            error(expr.keyword, "Can't user 'super' outside of a class.");
         } else if (currentClass == ClassType.CLASS) {
-            Lox.error(expr.keyword, "Can't use 'super' in a class with no superclass");
+            error(expr.keyword, "Can't use 'super' in a class with no superclass");
+        } else {
+            resolveLocal("super", (binding, index) -> {
+                expr.binding = binding;
+                expr.index = index;
+            });
+            resolveLocal("this", (binding, index) -> {
+                expr.thisBinding = binding;
+                expr.thisIndex = index;
+            });
         }
-        resolveLocal(expr, expr.keyword);
-        return null;
     }
 
     @Override
     public Void visitThisExpr(Expr.This expr) {
+        resolveThis(expr);
+        return null;
+    }
+
+    void resolveThis(Expr.This expr) {
         if (currentClass == ClassType.NONE) {
-            Lox.error(expr.keyword, "Can't use 'this' outside of a class.");
+            error(expr.keyword, "Can't use 'this' outside of a class.");
         } else {
-            resolveLocal(expr, expr.keyword);
+            resolveLocal("this", (binding, index) -> {
+                expr.binding = binding;
+                expr.index = index;
+            });
         }
-        return null;
     }
 
     @Override
@@ -229,6 +549,12 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    // Calls are only inlined once the whole script has been resolved
+    @Override
+    public Void visitInlineExpr(Expr.Inline expr) {
+        throw new IllegalStateException("Inlined call encountered by the resolver");
+    }
+
     @Override
     public Void visitLiteralExpr(Expr.Literal expr) {
         return null;
@@ -244,9 +570,14 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitUnaryExpr(Expr.Unary expr) {
         resolve(expr.right);
+        analyseOperand(expr);
         return null;
     }
 
+    void analyseOperand(Expr.Unary expr) {
+        expr.numericRight = producesNumber(expr.right);
+    }
+
     @Override
     public Void visitExpressionStmt(Stmt.Expression stmt) {
         resolve(stmt.expression);
@@ -269,20 +600,31 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
-        if (currentFunction == FunctionType.NONE) {
-            Lox.error(stmt.keyword, "Can't return from top-level code.");
+        beginReturn(stmt.keyword);
+        if (stmt.value != null) {
+            resolve(stmt.value);
         }
+        endReturn(stmt);
+        return null;
+    }
 
-        if (stmt.value == null) {
-            return null;
+    void beginReturn(Token keyword) {
+        if (frame.type == FunctionType.NONE) {
+            error(keyword, "Can't return from top-level code.");
         }
+    }
 
-        resolve(stmt.value);
-        if (currentFunction == FunctionType.INITIALIzER) {
-            Lox.error(stmt.keyword, "Can't return a value from an initializer.");
+    void endReturn(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            return;
         }
 
-        return null;
+        if (frame.type == FunctionType.INITIALIzER) {
+            error(stmt.keyword, "Can't return a value from an initializer.");
+        }
+        // Nothing's left to do in the function after a call it returns the result of, so it can be made in place of
+        // the function
+        stmt.tailCall = stmt.value instanceof Expr.Call;
     }
 
     @Override
@@ -291,4 +633,33 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         resolve(stmt.body);
         return null;
     }
+
+    private void error(Token token, String message) {
+        errors.add(new Error(token, message));
+    }
+
+    // How many errors have been found so far
+    int errorCount() {
+        return errors.size();
+    }
+
+    // Takes back the errors found since the given count. The Parser reaches some parts of the program before others
+    // that a walk of the tree would resolve first (e.g. a property assignment's object comes before its value, but is
+    // resolved after it), so holds on to their errors and puts them back with restoreErrors() once it gets there.
+    List<Error> takeErrors(int from) {
+        var found = errors.subList(from, errors.size());
+        var taken = new ArrayList<>(found);
+        found.clear();
+        return taken;
+    }
+
+    void restoreErrors(List<Error> taken) {
+        errors.addAll(taken);
+    }
+
+    public void reportErrors() {
+        for (var error : errors) {
+            Lox.error(error.token(), error.message());
+        }
+    }
 }
@@ -0,0 +1,90 @@
+package uk.co.lewisod.lox;
+
+import java.util.ArrayDeque;
+
+// A string built by concatenation, which keeps its two halves rather than copying them. It's only flattened into a
+// String the first time its contents are needed (e.g. when it's printed or compared), so building a long string one
+// piece at a time doesn't copy everything built so far on each step. Lox strings are either Strings or Ropes, and both
+// are CharSequences.
+public final class Rope implements CharSequence {
+    // Joining strings shorter than this is cheaper than keeping track of the pieces
+    private static final int MIN_LENGTH = 128;
+
+    private final int length;
+    // Each half is either a String or another Rope. Both are dropped once the rope has been flattened.
+    private CharSequence left;
+    private CharSequence right;
+    private String flattened;
+
+    private Rope(CharSequence left, CharSequence right) {
+        this.left = left;
+        this.right = right;
+        this.length = left.length() + right.length();
+    }
+
+    public static CharSequence concat(CharSequence left, CharSequence right) {
+        if (left.length() + right.length() < MIN_LENGTH) {
+            return left.toString() + right;
+        }
+        return new Rope(left, right);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().substring(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if (flattened == null) {
+            flattened = flatten();
+            left = null;
+            right = null;
+        }
+        return flattened;
+    }
+
+    // Copies the pieces in order without recursing, as a rope built up in a loop can be many thousands of levels deep
+    private String flatten() {
+        var chars = new char[length];
+        var position = 0;
+        var pending = new ArrayDeque<CharSequence>();
+        pending.push(this);
+        while (!pending.isEmpty()) {
+            var next = pending.pop();
+            if (next instanceof Rope rope && rope.flattened == null) {
+                pending.push(rope.right);
+                pending.push(rope.left);
+            } else {
+                var text = next.toString();
+                text.getChars(0, text.length(), chars, position);
+                position += text.length();
+            }
+        }
+        return new String(chars);
+    }
+
+    // Equal to any String or Rope with the same contents. A String won't consider itself equal to a Rope though, so
+    // equality checks need to ask the Rope.
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!(other instanceof CharSequence text) || text.length() != length) return false;
+        return toString().equals(text.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
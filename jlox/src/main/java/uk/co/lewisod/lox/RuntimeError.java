@@ -1,10 +1,14 @@
 package uk.co.lewisod.lox;
 
 public class RuntimeError extends RuntimeException {
-    final Token token;
+    final int line;
 
     public RuntimeError(Token token, String message) {
+        this(token.line, message);
+    }
+
+    public RuntimeError(int line, String message) {
         super(message);
-        this.token = token;
+        this.line = line;
     }
 }
@@ -1,168 +1,135 @@
 package uk.co.lewisod.lox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.ByteBuffer;
 
 import static uk.co.lewisod.lox.TokenType.*;
 
-public class Scanner {
-    private static final Map<String, TokenType> KEYWORDS = new HashMap<>();
-
-    static {
-        KEYWORDS.put("and", AND);
-        KEYWORDS.put("class", CLASS);
-        KEYWORDS.put("else", ELSE);
-        KEYWORDS.put("false", FALSE);
-        KEYWORDS.put("for", FOR);
-        KEYWORDS.put("fun", FUN);
-        KEYWORDS.put("if", IF);
-        KEYWORDS.put("nil", NIL);
-        KEYWORDS.put("or", OR);
-        KEYWORDS.put("print", PRINT);
-        KEYWORDS.put("return", RETURN);
-        KEYWORDS.put("super", SUPER);
-        KEYWORDS.put("this", THIS);
-        KEYWORDS.put("true", TRUE);
-        KEYWORDS.put("var", VAR);
-        KEYWORDS.put("while", WHILE);
-    }
-
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+// Scans UTF-8 source straight out of a ByteBuffer (usually a memory-mapped file), adding one token at a time to its
+// Tokens as the Parser asks for them. Tokens only record where they are in the source, so nothing is decoded here.
+public class Scanner implements TokenStream {
+    private final ByteBuffer source;
+    private final Tokens tokens;
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
-    public Scanner(String source) {
+    public Scanner(ByteBuffer source, Symbols symbols) {
+        this(source, new Tokens(source, symbols));
+    }
+
+    Scanner(ByteBuffer source, Tokens tokens) {
         this.source = source;
+        this.tokens = tokens;
+    }
+
+    @Override
+    public Tokens tokens() {
+        return tokens;
     }
 
-    public List<Token> scanTokens() {
+    // Scans the next token in the source (or EOF once it's all been scanned), giving its position in the Tokens
+    @Override
+    public int nextToken() {
         while (!isAtEnd()) {
             start = current;
-            scanToken();
+            var type = scanToken();
+            if (type != null) {
+                return tokens.add(type, start, current, line);
+            }
         }
 
-        tokens.add(new Token(EOF, "", null, line));
-        return tokens;
+        return tokens.add(EOF, current, current, line);
     }
 
-    private void scanToken() {
+    // Scans a single token and gives its type, or null for whitespace, comments and errors
+    private TokenType scanToken() {
         var character = advance();
         switch (character) {
             case '(':
-                addToken(LEFT_PAREN);
-                break;
+                return LEFT_PAREN;
             case ')':
-                addToken(RIGHT_PAREN);
-                break;
+                return RIGHT_PAREN;
             case '{':
-                addToken(LEFT_BRACE);
-                break;
+                return LEFT_BRACE;
             case '}':
-                addToken(RIGHT_BRACE);
-                break;
+                return RIGHT_BRACE;
             case ',':
-                addToken(COMMA);
-                break;
+                return COMMA;
             case '.':
-                addToken(DOT);
-                break;
+                return DOT;
             case '-':
-                addToken(MINUS);
-                break;
+                return MINUS;
             case '+':
-                addToken(PLUS);
-                break;
+                return PLUS;
             case ';':
-                addToken(SEMICOLON);
-                break;
+                return SEMICOLON;
             case '*':
-                addToken(STAR);
-                break;
+                return STAR;
             case '!':
-                addToken(match('=') ? BANG_EQUAL : BANG);
-                break;
+                return match('=') ? BANG_EQUAL : BANG;
             case '=':
-                addToken(match('=') ? EQUAL_EQUAL : EQUAL);
-                break;
+                return match('=') ? EQUAL_EQUAL : EQUAL;
             case '<':
-                addToken(match('=') ? LESS_EQUAL : LESS);
-                break;
+                return match('=') ? LESS_EQUAL : LESS;
             case '>':
-                addToken(match('=') ? GREATER_EQUAL : GREATER);
-                break;
+                return match('=') ? GREATER_EQUAL : GREATER;
             case '/':
                 if (match('/')) {
                     while (peek() != '\n' && !isAtEnd()) advance();
-                } else {
-                    addToken(SLASH);
+                    return null;
                 }
-                break;
+                return SLASH;
             case ' ':
             case '\r':
             case '\t':
-                break;
+                return null;
             case '\n':
                 line++;
-                break;
+                return null;
             case '"':
-                string();
-                break;
+                return string();
             default:
                 if (isDigit(character)) {
-                    number();
+                    return number();
                 } else if (isAlpha(character)) {
-                    identifier();
-                } else {
-                    Lox.error(line, "Unexpected character.");
+                    return identifier();
                 }
-                break;
+                // Skip the rest of a multi-byte character, so it's only reported once
+                while (isContinuation(peek())) advance();
+                error(line, "Unexpected character.");
+                return null;
         }
     }
 
-    private char advance() {
-        return source.charAt(current++);
-    }
-
-    private void addToken(TokenType tokenType) {
-        addToken(tokenType, null);
-    }
-
-    private void addToken(TokenType type, Object literal) {
-        var text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+    private byte advance() {
+        return source.get(current++);
     }
 
     private boolean match(char expected) {
         if (isAtEnd()) return false;
-        if (source.charAt(current) != expected) return false;
+        if (source.get(current) != expected) return false;
 
         current++;
         return true;
     }
 
-    private void string() {
+    private TokenType string() {
+        var startLine = line;
         while (peek() != '"' && !isAtEnd()) {
             if (peek() == '\n') line++;
             advance();
         }
 
         if (isAtEnd()) {
-            Lox.error(line, "Unterminated string literal.");
-            return;
+            unterminatedString(start, startLine);
+            return null;
         }
 
         advance(); // Closing quote
-
-        // Trim surrounding quotes
-        var value = source.substring(start + 1, current - 1);
-        addToken(STRING, value);
+        return STRING;
     }
 
-    private void number() {
+    private TokenType number() {
         while (isDigit(peek())) advance();
 
         if (peek() == '.' && isDigit(peekNext())) {
@@ -171,46 +138,100 @@ public class Scanner {
             while (isDigit(peek()));
         }
 
-        var value = source.substring(start, current);
-        addToken(NUMBER, Double.parseDouble(value));
+        return NUMBER;
     }
 
-    private void identifier() {
+    private TokenType identifier() {
         while (isAlphaNumeric(peek())) advance();
 
-        var text = source.substring(start, current);
-        var tokenType = KEYWORDS.getOrDefault(text, IDENTIFIER);
-        addToken(tokenType);
+        return identifierType();
+    }
+
+    // Recognises keywords by switching on their letters, like a trie, without needing to look the word up
+    private TokenType identifierType() {
+        return switch (source.get(start)) {
+            case 'a' -> keyword(1, "nd", AND);
+            case 'c' -> keyword(1, "lass", CLASS);
+            case 'e' -> keyword(1, "lse", ELSE);
+            case 'f' -> current - start < 2 ? IDENTIFIER : switch (source.get(start + 1)) {
+                case 'a' -> keyword(2, "lse", FALSE);
+                case 'o' -> keyword(2, "r", FOR);
+                case 'u' -> keyword(2, "n", FUN);
+                default -> IDENTIFIER;
+            };
+            case 'i' -> keyword(1, "f", IF);
+            case 'n' -> keyword(1, "il", NIL);
+            case 'o' -> keyword(1, "r", OR);
+            case 'p' -> keyword(1, "rint", PRINT);
+            case 'r' -> keyword(1, "eturn", RETURN);
+            case 's' -> keyword(1, "uper", SUPER);
+            case 't' -> current - start < 2 ? IDENTIFIER : switch (source.get(start + 1)) {
+                case 'h' -> keyword(2, "is", THIS);
+                case 'r' -> keyword(2, "ue", TRUE);
+                default -> IDENTIFIER;
+            };
+            case 'v' -> keyword(1, "ar", VAR);
+            case 'w' -> keyword(1, "hile", WHILE);
+            default -> IDENTIFIER;
+        };
+    }
+
+    // The keyword's type if the rest of the identifier (after the first offset letters) is exactly rest
+    private TokenType keyword(int offset, String rest, TokenType type) {
+        if (current - start != offset + rest.length()) return IDENTIFIER;
+        for (var i = 0; i < rest.length(); i++) {
+            if (source.get(start + offset + i) != rest.charAt(i)) return IDENTIFIER;
+        }
+        return type;
+    }
+
+    // The line the scanner has reached
+    int line() {
+        return line;
+    }
+
+    void error(int line, String message) {
+        Lox.error(line, message);
+    }
+
+    // Called when the source ends in the middle of a string, which starts at the given offset and line
+    void unterminatedString(int start, int line) {
+        error(this.line, "Unterminated string literal.");
     }
 
-    private char peek() {
+    private byte peek() {
         if (isAtEnd()) return '\0';
-        return source.charAt(current);
+        return source.get(current);
     }
 
     // Could have made peek() take an argument for num chars to lookahead.
     // Having 2 separate functions makes it clearer restricting to a 2 char
     // lookahead was a conscious decision.
-    private char peekNext() {
-        if (current + 1 >= source.length()) return '\0';
-        return source.charAt(current + 1);
+    private byte peekNext() {
+        if (current + 1 >= source.limit()) return '\0';
+        return source.get(current + 1);
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= source.limit();
     }
 
-    private static boolean isAlphaNumeric(char c) {
+    private static boolean isAlphaNumeric(byte c) {
         return isAlpha(c) || isDigit(c);
     }
 
-    private static boolean isDigit(char c) {
+    private static boolean isDigit(byte c) {
         return c >= '0' && c <= '9';
     }
 
-    private static boolean isAlpha(char c) {
+    private static boolean isAlpha(byte c) {
         return (c >= 'a' && c <= 'z') ||
                 (c >= 'A' && c <= 'Z') ||
                 c == '_';
     }
+
+    // The bytes after the first of a multi-byte UTF-8 character all look like 10xxxxxx
+    private static boolean isContinuation(byte c) {
+        return (c & 0xC0) == 0x80;
+    }
 }
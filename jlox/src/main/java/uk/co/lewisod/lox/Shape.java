@@ -0,0 +1,38 @@
+package uk.co.lewisod.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// The layout of an instance's fields, shared by every instance that had the same fields added in the same order. Each
+// class has its own empty root shape, so a shape also identifies the class of the instances that have it, and adding
+// a field moves an instance to the next shape along, which is created the first time it's needed.
+public class Shape {
+    private final Map<String, Integer> slots;
+    private final Map<String, Shape> transitions = new HashMap<>();
+
+    Shape() {
+        this(Map.of());
+    }
+
+    private Shape(Map<String, Integer> slots) {
+        this.slots = slots;
+    }
+
+    // The index of the field in the instance's array of fields, or -1 if instances with this shape don't have it
+    int slot(String name) {
+        var slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    int size() {
+        return slots.size();
+    }
+
+    Shape withField(String name) {
+        return transitions.computeIfAbsent(name, key -> {
+            var newSlots = new HashMap<>(slots);
+            newSlots.put(key, slots.size());
+            return new Shape(newSlots);
+        });
+    }
+}
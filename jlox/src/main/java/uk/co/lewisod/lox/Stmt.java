@@ -10,6 +10,7 @@ public abstract class Stmt {
     R visitBlockStmt(Block stmt);
     R visitClassStmt(Class stmt);
     R visitExpressionStmt(Expression stmt);
+    R visitForStmt(For stmt);
     R visitFunctionStmt(Function stmt);
     R visitIfStmt(If stmt);
     R visitPrintStmt(Print stmt);
@@ -21,7 +22,7 @@ public abstract class Stmt {
   public abstract <R> R accept(Visitor<R> visitor);
 
   public static class Block extends Stmt {
-    final List<Stmt> statements;
+    public final List<Stmt> statements;
 
     public Block(List<Stmt> statements) {
       this.statements = statements;
@@ -34,9 +35,13 @@ public abstract class Stmt {
   }
 
   public static class Class extends Stmt {
-    final Token name;
-    final Expr.Variable superclass;
-    final List<Stmt.Function> methods;
+    public final Token name;
+    public final Expr.Variable superclass;
+    public final List<Stmt.Function> methods;
+
+    public int slot = -1;
+    public boolean cell;
+    public int superSlot;
 
     public Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
       this.name = name;
@@ -51,7 +56,7 @@ public abstract class Stmt {
   }
 
   public static class Expression extends Stmt {
-    final Expr expression;
+    public final Expr expression;
 
     public Expression(Expr expression) {
       this.expression = expression;
@@ -63,10 +68,42 @@ public abstract class Stmt {
     }
   }
 
+  public static class For extends Stmt {
+    public final Stmt.While loop;
+    public final Expr.Variable counter;
+    public final Token operator;
+    public final Expr limit;
+    public final double step;
+    public final Stmt body;
+
+    public For(Stmt.While loop, Expr.Variable counter, Token operator, Expr limit, double step, Stmt body) {
+      this.loop = loop;
+      this.counter = counter;
+      this.operator = operator;
+      this.limit = limit;
+      this.step = step;
+      this.body = body;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitForStmt(this);
+    }
+  }
+
   public static class Function extends Stmt {
-    final Token name;
-    final List<Token> params;
-    final List<Stmt> body;
+    public final Token name;
+    public final List<Token> params;
+    public final List<Stmt> body;
+
+    public int slot = -1;
+    public boolean cell;
+    public int slots;
+    public int[] cellParams;
+    public boolean[] capturesLocal;
+    public int[] captureIndexes;
+    public int calls;
+    public volatile CompiledFunction compiled;
 
     public Function(Token name, List<Token> params, List<Stmt> body) {
       this.name = name;
@@ -81,9 +118,9 @@ public abstract class Stmt {
   }
 
   public static class If extends Stmt {
-    final Expr condition;
-    final Stmt thenBranch;
-    final Stmt elseBranch;
+    public final Expr condition;
+    public final Stmt thenBranch;
+    public final Stmt elseBranch;
 
     public If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
       this.condition = condition;
@@ -98,7 +135,7 @@ public abstract class Stmt {
   }
 
   public static class Print extends Stmt {
-    final Expr expression;
+    public final Expr expression;
 
     public Print(Expr expression) {
       this.expression = expression;
@@ -111,8 +148,10 @@ public abstract class Stmt {
   }
 
   public static class Return extends Stmt {
-    final Token keyword;
-    final Expr value;
+    public final Token keyword;
+    public final Expr value;
+
+    public boolean tailCall;
 
     public Return(Token keyword, Expr value) {
       this.keyword = keyword;
@@ -126,8 +165,11 @@ public abstract class Stmt {
   }
 
   public static class Var extends Stmt {
-    final Token name;
-    final Expr initializer;
+    public final Token name;
+    public final Expr initializer;
+
+    public int slot = -1;
+    public boolean cell;
 
     public Var(Token name, Expr initializer) {
       this.name = name;
@@ -141,8 +183,8 @@ public abstract class Stmt {
   }
 
   public static class While extends Stmt {
-    final Expr condition;
-    final Stmt body;
+    public final Expr condition;
+    public final Stmt body;
 
     public While(Expr condition, Stmt body) {
       this.condition = condition;
@@ -0,0 +1,70 @@
+package uk.co.lewisod.lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// The symbol table the Scanner interns lexemes into, so every occurrence of a name shares a single String. Interned
+// Strings cache their hash, and compare equal by identity before comparing their characters, which speeds up every
+// map keyed by name (scopes in the Resolver, globals, shapes and methods). Symbols are looked up straight from the
+// source, so a lexeme that's been seen before doesn't need decoding to find it.
+public class Symbols {
+    private String[] texts = new String[64];
+    private int count = 0;
+
+    // The interned text of source[start, end), which must be ASCII (like every lexeme outside a string literal)
+    String intern(ByteBuffer source, int start, int end) {
+        var length = end - start;
+        var hash = 0;
+        for (var i = start; i < end; i++) {
+            hash = 31 * hash + source.get(i);
+        }
+
+        var mask = texts.length - 1;
+        var index = spread(hash) & mask;
+        while (texts[index] != null) {
+            var text = texts[index];
+            if (text.length() == length && matches(text, source, start)) {
+                return text;
+            }
+            index = (index + 1) & mask;
+        }
+
+        var bytes = new byte[length];
+        source.get(start, bytes);
+        var text = new String(bytes, StandardCharsets.US_ASCII);
+        texts[index] = text;
+        count++;
+        // Keep the table at most half full, so probe sequences stay short
+        if (count * 2 > texts.length) {
+            grow();
+        }
+        return text;
+    }
+
+    private static boolean matches(String text, ByteBuffer source, int start) {
+        for (var i = 0; i < text.length(); i++) {
+            if (text.charAt(i) != source.get(start + i)) return false;
+        }
+        return true;
+    }
+
+    private void grow() {
+        var oldTexts = texts;
+        texts = new String[oldTexts.length * 2];
+        var mask = texts.length - 1;
+        for (var text : oldTexts) {
+            if (text == null) continue;
+            // Hashing the bytes of an ASCII lexeme gives the same hash as its String
+            var index = spread(text.hashCode()) & mask;
+            while (texts[index] != null) {
+                index = (index + 1) & mask;
+            }
+            texts[index] = text;
+        }
+    }
+
+    // Mixes the high bits of the hash into the low ones, which are all that's used to pick an index
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
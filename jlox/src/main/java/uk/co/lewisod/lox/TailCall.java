@@ -0,0 +1,14 @@
+package uk.co.lewisod.lox;
+
+// A call made by a return statement, which is given back to the caller of the function that's returning to make in
+// its place, rather than being made there and then. That way a chain of tail calls doesn't use any more of the Java
+// stack than a single call. Compiled function bodies can give one back too, so whatever calls them completes it.
+public record TailCall(LoxFunction function, LoxInstance receiver, Object[] arguments) {
+    // Makes the tail call if the result of calling a function is one, along with any tail calls that makes in turn
+    public static Object complete(Object result, Interpreter interpreter) {
+        while (result instanceof TailCall call) {
+            result = call.function.runTailCall(interpreter, call.receiver, call.arguments);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,10 @@
+package uk.co.lewisod.lox;
+
+// Where the Parser gets its tokens from: either a Scanner scanning as it goes, or a ParallelScanner that's scanned the
+// whole source up front
+public interface TokenStream {
+    Tokens tokens();
+
+    // The position in tokens() of the next token, which is EOF once the source has run out
+    int nextToken();
+}
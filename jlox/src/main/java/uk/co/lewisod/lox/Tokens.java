@@ -0,0 +1,132 @@
+package uk.co.lewisod.lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// The tokens the Scanner has found, packed into parallel arrays of where each one is in the source rather than kept
+// as Token objects. The Parser mostly only needs to know a token's type, so a Token (with its lexeme and literal) is
+// only made when it's needed for the AST or an error message. Tokens are referred to by their position in the source's
+// sequence of tokens, and ones the Parser has finished with can be discarded to make room for more.
+public class Tokens {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final ByteBuffer source;
+    private final Symbols symbols;
+    private byte[] types = new byte[64];
+    private int[] starts = new int[64];
+    private int[] ends = new int[64];
+    private int[] lines = new int[64];
+    // The position of the token at index zero of the arrays
+    private int base = 0;
+    // The position of the earliest token that's still needed
+    private int first = 0;
+    // The position the next token added will have
+    private int size = 0;
+
+    Tokens(ByteBuffer source, Symbols symbols) {
+        this.source = source;
+        this.symbols = symbols;
+    }
+
+    int add(TokenType type, int start, int end, int line) {
+        if (size - base == types.length) {
+            makeRoom();
+        }
+
+        var index = size - base;
+        types[index] = (byte) type.ordinal();
+        starts[index] = start;
+        ends[index] = end;
+        lines[index] = line;
+        return size++;
+    }
+
+    // Adds the first count tokens scanned into a separate Tokens, from a chunk of this source starting at offset and
+    // lineOffset lines in
+    void addAll(Tokens chunk, int count, int offset, int lineOffset) {
+        var index = size - base;
+        if (index + count > types.length) {
+            var capacity = Math.max(types.length * 2, index + count);
+            types = move(types, 0, index, capacity);
+            starts = move(starts, 0, index, capacity);
+            ends = move(ends, 0, index, capacity);
+            lines = move(lines, 0, index, capacity);
+        }
+
+        System.arraycopy(chunk.types, 0, types, index, count);
+        for (var i = 0; i < count; i++) {
+            starts[index + i] = chunk.starts[i] + offset;
+            ends[index + i] = chunk.ends[i] + offset;
+            lines[index + i] = chunk.lines[i] + lineOffset;
+        }
+        size += count;
+    }
+
+    // The position the next token added will have
+    int size() {
+        return size;
+    }
+
+    // Lets the tokens before the given position be dropped
+    void discardBefore(int position) {
+        first = Math.max(first, position);
+    }
+
+    TokenType type(int position) {
+        return TYPES[types[position - base]];
+    }
+
+    int line(int position) {
+        return lines[position - base];
+    }
+
+    Token token(int position) {
+        var index = position - base;
+        var type = TYPES[types[index]];
+        var start = starts[index];
+        var end = ends[index];
+        return switch (type) {
+            case STRING -> {
+                var text = decode(start, end);
+                // Trim surrounding quotes
+                yield new Token(type, text, text.substring(1, text.length() - 1), lines[index]);
+            }
+            case NUMBER -> {
+                var text = decode(start, end);
+                yield new Token(type, text, Double.parseDouble(text), lines[index]);
+            }
+            case EOF -> new Token(type, "", null, lines[index]);
+            default -> new Token(type, symbols.intern(source, start, end), null, lines[index]);
+        };
+    }
+
+    private String decode(int start, int end) {
+        var bytes = new byte[end - start];
+        source.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Moves the tokens that are still needed to the start of the arrays, growing them if that doesn't free up much
+    private void makeRoom() {
+        var kept = size - first;
+        var capacity = kept * 2 > types.length ? types.length * 2 : types.length;
+        var from = first - base;
+        types = move(types, from, kept, capacity);
+        starts = move(starts, from, kept, capacity);
+        ends = move(ends, from, kept, capacity);
+        lines = move(lines, from, kept, capacity);
+        base = first;
+    }
+
+    private static byte[] move(byte[] array, int from, int length, int capacity) {
+        var moved = capacity == array.length ? array : new byte[capacity];
+        System.arraycopy(array, from, moved, 0, length);
+        return moved;
+    }
+
+    private static int[] move(int[] array, int from, int length, int capacity) {
+        var moved = capacity == array.length ? array : new int[capacity];
+        System.arraycopy(array, from, moved, 0, length);
+        return moved;
+    }
+}
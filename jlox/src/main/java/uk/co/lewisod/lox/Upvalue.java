@@ -0,0 +1,12 @@
+package uk.co.lewisod.lox;
+
+// A variable captured by a closure, mirroring clox's ObjUpvalue. Rather than starting open and being closed when the
+// variable goes out of scope, captured variables are boxed as soon as they're declared, and the declaring function and
+// any closures share the box.
+public class Upvalue {
+    public Object value;
+
+    public Upvalue(Object value) {
+        this.value = value;
+    }
+}
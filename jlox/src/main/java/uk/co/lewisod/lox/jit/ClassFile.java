@@ -0,0 +1,234 @@
+package uk.co.lewisod.lox.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Just enough of a JVM class file writer for the JitCompiler: a constant pool, some static and instance methods, and the
+// bootstrap methods used by invokedynamic and dynamic constants
+class ClassFile {
+    private static final int VERSION = 61;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private int poolCount = 1;
+    // Lets each distinct entry appear in the pool once, keyed by its tag and contents
+    private final Map<String, Integer> poolIndexes = new HashMap<>();
+    private final List<byte[]> bootstrapMethods = new ArrayList<>();
+    private final Map<String, Integer> bootstrapIndexes = new HashMap<>();
+    private final List<byte[]> methods = new ArrayList<>();
+
+    private final String name;
+    private final String superName;
+
+    ClassFile(String name, String superName) {
+        this.name = name;
+        this.superName = superName;
+    }
+
+    int utf8(String value) {
+        return entry("Utf8:" + value, out -> {
+            out.writeByte(1);
+            out.writeUTF(value);
+        });
+    }
+
+    int classRef(String internalName) {
+        var nameIndex = utf8(internalName);
+        return entry("Class:" + internalName, out -> {
+            out.writeByte(7);
+            out.writeShort(nameIndex);
+        });
+    }
+
+    int string(String value) {
+        var valueIndex = utf8(value);
+        return entry("String:" + value, out -> {
+            out.writeByte(8);
+            out.writeShort(valueIndex);
+        });
+    }
+
+    int integer(int value) {
+        return entry("Integer:" + value, out -> {
+            out.writeByte(3);
+            out.writeInt(value);
+        });
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(9, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(10, owner, name, descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return memberRef(11, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        var classIndex = classRef(owner);
+        var nameAndType = nameAndType(name, descriptor);
+        return entry(tag + ":" + owner + "." + name + descriptor, out -> {
+            out.writeByte(tag);
+            out.writeShort(classIndex);
+            out.writeShort(nameAndType);
+        });
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        var nameIndex = utf8(name);
+        var descriptorIndex = utf8(descriptor);
+        return entry("NameAndType:" + name + descriptor, out -> {
+            out.writeByte(12);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+        });
+    }
+
+    // A handle to a static method, for use as a bootstrap method
+    int staticMethodHandle(String owner, String name, String descriptor) {
+        var method = methodRef(owner, name, descriptor);
+        return entry("MethodHandle:" + method, out -> {
+            out.writeByte(15);
+            out.writeByte(6); // REF_invokeStatic
+            out.writeShort(method);
+        });
+    }
+
+    // A constant produced by calling a bootstrap method the first time it's loaded
+    int dynamic(int bootstrapMethod, String name, String descriptor) {
+        return dynamicEntry(17, bootstrapMethod, name, descriptor);
+    }
+
+    int invokeDynamic(int bootstrapMethod, String name, String descriptor) {
+        return dynamicEntry(18, bootstrapMethod, name, descriptor);
+    }
+
+    private int dynamicEntry(int tag, int bootstrapMethod, String name, String descriptor) {
+        var nameAndType = nameAndType(name, descriptor);
+        return entry(tag + ":" + bootstrapMethod + ":" + name + descriptor, out -> {
+            out.writeByte(tag);
+            out.writeShort(bootstrapMethod);
+            out.writeShort(nameAndType);
+        });
+    }
+
+    // Returns the index of the bootstrap method in the class's BootstrapMethods attribute
+    int bootstrapMethod(int methodHandle, int... arguments) {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(methodHandle);
+            out.writeShort(arguments.length);
+            for (var argument : arguments) {
+                out.writeShort(argument);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        var key = Arrays.toString(bytes.toByteArray());
+        var index = bootstrapIndexes.get(key);
+        if (index == null) {
+            index = bootstrapMethods.size();
+            bootstrapMethods.add(bytes.toByteArray());
+            bootstrapIndexes.put(key, index);
+        }
+        return index;
+    }
+
+    void addMethod(int access, String name, String descriptor, Code code) {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1);
+            out.writeShort(utf8("Code"));
+            var attribute = code.toAttribute();
+            out.writeInt(attribute.length);
+            out.write(attribute);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methods.add(bytes.toByteArray());
+    }
+
+    byte[] toBytes() {
+        var thisClass = classRef(name);
+        var superClass = classRef(superName);
+        var bootstrapAttribute = bootstrapMethods.isEmpty() ? 0 : utf8("BootstrapMethods");
+
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            out.write(poolBytes.toByteArray());
+
+            out.writeShort(0x0001 | 0x0010 | 0x0020); // ACC_PUBLIC | ACC_FINAL | ACC_SUPER
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+
+            out.writeShort(methods.size());
+            for (var method : methods) {
+                out.write(method);
+            }
+
+            if (bootstrapMethods.isEmpty()) {
+                out.writeShort(0);
+            } else {
+                out.writeShort(1);
+                out.writeShort(bootstrapAttribute);
+                var length = 2;
+                for (var method : bootstrapMethods) {
+                    length += method.length;
+                }
+                out.writeInt(length);
+                out.writeShort(bootstrapMethods.size());
+                for (var method : bootstrapMethods) {
+                    out.write(method);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private interface EntryWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private int entry(String key, EntryWriter writer) {
+        var index = poolIndexes.get(key);
+        if (index != null) {
+            return index;
+        }
+
+        try {
+            writer.write(pool);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        index = poolCount++;
+        if (index > 0xffff) {
+            throw new JitException("Too many constants");
+        }
+        poolIndexes.put(key, index);
+        return index;
+    }
+}
@@ -0,0 +1,341 @@
+package uk.co.lewisod.lox.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+// The body of a method being written by the JitCompiler. The JIT only ever leaves references on the stack at the start
+// of a statement or the target of a jump, and gives every local the same type for the whole method, so each jump
+// target's stack map frame only depends on how deep the stack is there.
+class Code {
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC = 0x12;
+    static final int LDC_W = 0x13;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int ASTORE = 0x3a;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int SWAP = 0x5f;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int INVOKEDYNAMIC = 0xba;
+    static final int NEW = 0xbb;
+    static final int ANEWARRAY = 0xbd;
+    static final int CHECKCAST = 0xc0;
+
+    private static final String OBJECT = "java/lang/Object";
+
+    // A position in the code that can be jumped to, possibly before it's known where it is
+    static class Label {
+        private int offset = -1;
+        // The stack depth when jumping to the label
+        private int depth = -1;
+        // Offsets of jump instructions waiting to find out where the label is
+        private final List<Integer> jumps = new ArrayList<>();
+    }
+
+    private final ClassFile classFile;
+    // The type of each local, as the internal name of its class
+    private final String[] locals;
+    private byte[] code = new byte[256];
+    private int length = 0;
+    private int depth = 0;
+    private int maxStack = 0;
+    // Code straight after a goto or return can only be reached by jumping to it. The JIT doesn't jump into dead code
+    // (e.g. statements after a return), so it isn't written, which saves giving it a stack map frame.
+    private boolean reachable = true;
+    // Stack depth at each jump target, in order of offset
+    private final TreeMap<Integer, Integer> frames = new TreeMap<>();
+
+    Code(ClassFile classFile, String... locals) {
+        this.classFile = classFile;
+        this.locals = locals;
+    }
+
+    boolean isReachable() {
+        return reachable;
+    }
+
+    void op(int opcode, int stackEffect) {
+        if (!reachable) return;
+        writeByte(opcode);
+        adjustStack(stackEffect);
+    }
+
+    void aconstNull() {
+        op(ACONST_NULL, 1);
+    }
+
+    void iconst(int value) {
+        if (!reachable) return;
+        if (value >= -1 && value <= 5) {
+            op(ICONST_0 + value, 1);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            op(BIPUSH, 1);
+            writeByte(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            op(SIPUSH, 1);
+            writeShort(value);
+        } else {
+            ldc(classFile.integer(value));
+        }
+    }
+
+    void ldc(int constant) {
+        if (!reachable) return;
+        if (constant <= 0xff) {
+            op(LDC, 1);
+            writeByte(constant);
+        } else {
+            op(LDC_W, 1);
+            writeShort(constant);
+        }
+    }
+
+    void aload(int local) {
+        localOp(ALOAD, local, 1);
+    }
+
+    void astore(int local) {
+        localOp(ASTORE, local, -1);
+    }
+
+    private void localOp(int opcode, int local, int stackEffect) {
+        if (!reachable) return;
+        if (local <= 3) {
+            // e.g. aload_0, which has its own opcode
+            op((opcode == ALOAD ? 0x2a : 0x4b) + local, stackEffect);
+        } else {
+            op(opcode, stackEffect);
+            writeByte(local);
+        }
+    }
+
+    void typeOp(int opcode, String internalName, int stackEffect) {
+        if (!reachable) return;
+        op(opcode, stackEffect);
+        writeShort(classFile.classRef(internalName));
+    }
+
+    void getField(String owner, String name, String descriptor) {
+        fieldOp(GETFIELD, owner, name, descriptor, 0);
+    }
+
+    void putField(String owner, String name, String descriptor) {
+        fieldOp(PUTFIELD, owner, name, descriptor, -2);
+    }
+
+    void getStatic(String owner, String name, String descriptor) {
+        fieldOp(GETSTATIC, owner, name, descriptor, 1);
+    }
+
+    private void fieldOp(int opcode, String owner, String name, String descriptor, int stackEffect) {
+        if (!reachable) return;
+        op(opcode, stackEffect);
+        writeShort(classFile.fieldRef(owner, name, descriptor));
+    }
+
+    void invokeStatic(String owner, String name, String descriptor) {
+        if (!reachable) return;
+        op(INVOKESTATIC, callEffect(descriptor, false));
+        writeShort(classFile.methodRef(owner, name, descriptor));
+    }
+
+    void invokeVirtual(String owner, String name, String descriptor) {
+        if (!reachable) return;
+        op(INVOKEVIRTUAL, callEffect(descriptor, true));
+        writeShort(classFile.methodRef(owner, name, descriptor));
+    }
+
+    void invokeSpecial(String owner, String name, String descriptor) {
+        if (!reachable) return;
+        op(INVOKESPECIAL, callEffect(descriptor, true));
+        writeShort(classFile.methodRef(owner, name, descriptor));
+    }
+
+    void invokeInterface(String owner, String name, String descriptor) {
+        if (!reachable) return;
+        op(INVOKEINTERFACE, callEffect(descriptor, true));
+        writeShort(classFile.interfaceMethodRef(owner, name, descriptor));
+        writeByte(argumentSlots(descriptor) + 1);
+        writeByte(0);
+    }
+
+    void invokeDynamic(int bootstrapMethod, String name, String descriptor) {
+        if (!reachable) return;
+        op(INVOKEDYNAMIC, callEffect(descriptor, false));
+        writeShort(classFile.invokeDynamic(bootstrapMethod, name, descriptor));
+        writeShort(0);
+    }
+
+    void jump(int opcode, Label label) {
+        if (!reachable) return;
+        var at = length;
+        op(opcode, opcode == GOTO ? 0 : -1);
+        if (label.offset == -1) {
+            label.jumps.add(at);
+            writeShort(0);
+        } else {
+            writeShort(label.offset - at);
+        }
+        recordDepth(label);
+        if (opcode == GOTO) {
+            reachable = false;
+        }
+    }
+
+    void returnValue() {
+        op(ARETURN, -1);
+        reachable = false;
+    }
+
+    void returnVoid() {
+        op(RETURN, 0);
+        reachable = false;
+    }
+
+    void bind(Label label) {
+        if (reachable) {
+            recordDepth(label);
+        } else if (label.jumps.isEmpty()) {
+            // Nothing can jump here yet, and backward jumps to it could only come from more dead code
+            return;
+        } else {
+            reachable = true;
+            depth = label.depth;
+        }
+
+        label.offset = length;
+        for (var jump : label.jumps) {
+            var offset = length - jump;
+            code[jump + 1] = (byte) (offset >> 8);
+            code[jump + 2] = (byte) offset;
+        }
+        label.jumps.clear();
+        frames.put(length, depth);
+    }
+
+    private void recordDepth(Label label) {
+        if (label.depth != -1 && label.depth != depth) {
+            throw new IllegalStateException("Inconsistent stack depth at jump target");
+        }
+        label.depth = depth;
+    }
+
+    private void adjustStack(int stackEffect) {
+        depth += stackEffect;
+        maxStack = Math.max(maxStack, depth);
+    }
+
+    private void writeByte(int b) {
+        if (length == code.length) {
+            code = Arrays.copyOf(code, code.length * 2);
+        }
+        code[length++] = (byte) b;
+    }
+
+    private void writeShort(int value) {
+        writeByte(value >> 8);
+        writeByte(value);
+    }
+
+    // How the stack changes when calling a method with the given descriptor. Only single slot types are passed around.
+    private static int callEffect(String descriptor, boolean hasReceiver) {
+        var returnType = descriptor.charAt(descriptor.indexOf(')') + 1);
+        return (returnType == 'V' ? 0 : 1) - argumentSlots(descriptor) - (hasReceiver ? 1 : 0);
+    }
+
+    private static int argumentSlots(String descriptor) {
+        var slots = 0;
+        var i = 1;
+        while (descriptor.charAt(i) != ')') {
+            var c = descriptor.charAt(i);
+            while (c == '[') {
+                c = descriptor.charAt(++i);
+            }
+            if (c == 'L') {
+                i = descriptor.indexOf(';', i);
+            }
+            slots++;
+            i++;
+        }
+        return slots;
+    }
+
+    // The contents of the method's Code attribute
+    byte[] toAttribute() {
+        if (length > 0xffff) {
+            throw new JitException("Method too large");
+        }
+
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(maxStack);
+            out.writeShort(locals.length);
+            out.writeInt(length);
+            out.write(code, 0, length);
+            out.writeShort(0); // exception table
+
+            if (frames.isEmpty()) {
+                out.writeShort(0);
+            } else {
+                out.writeShort(1);
+                var table = stackMapTable();
+                out.writeShort(classFile.utf8("StackMapTable"));
+                out.writeInt(table.length);
+                out.write(table);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private byte[] stackMapTable() throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        out.writeShort(frames.size());
+
+        var previous = -1;
+        for (var frame : frames.entrySet()) {
+            // Every frame is a full_frame, which is simple and always valid
+            out.writeByte(255);
+            out.writeShort(frame.getKey() - previous - 1);
+            out.writeShort(locals.length);
+            for (var local : locals) {
+                writeObjectType(out, local);
+            }
+            out.writeShort(frame.getValue());
+            for (var i = 0; i < frame.getValue(); i++) {
+                writeObjectType(out, OBJECT);
+            }
+            previous = frame.getKey();
+        }
+        return bytes.toByteArray();
+    }
+
+    private void writeObjectType(DataOutputStream out, String internalName) throws IOException {
+        out.writeByte(7); // Object_variable_info
+        out.writeShort(classFile.classRef(internalName));
+    }
+}
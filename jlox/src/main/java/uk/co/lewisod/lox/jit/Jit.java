@@ -0,0 +1,43 @@
+package uk.co.lewisod.lox.jit;
+
+import uk.co.lewisod.lox.CompiledFunction;
+import uk.co.lewisod.lox.Globals;
+import uk.co.lewisod.lox.Interpreter;
+import uk.co.lewisod.lox.Stmt;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Compiles Lox to JVM bytecode. The top-level script is compiled before it's run, while functions keep being
+// interpreted until they get hot, then are compiled on a background thread so the program doesn't have to wait.
+public class Jit {
+    private final Interpreter interpreter;
+    private final Globals globals;
+    private final ExecutorService compiler = Executors.newSingleThreadExecutor(runnable -> {
+        var thread = new Thread(runnable, "jit-compiler");
+        // Don't keep the program running just to compile functions that'll never be called again
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public Jit(Interpreter interpreter, Globals globals) {
+        this.interpreter = interpreter;
+        this.globals = globals;
+    }
+
+    public CompiledFunction compileScript(List<Stmt> statements, int scriptSlots) {
+        return JitCompiler.compileScript(interpreter, globals, statements, scriptSlots);
+    }
+
+    // Once compiled, calls to the function run the compiled code instead of being interpreted
+    public void submit(Stmt.Function declaration, boolean isInitializer) {
+        compiler.execute(() -> {
+            try {
+                declaration.compiled = JitCompiler.compile(interpreter, globals, declaration, isInitializer);
+            } catch (JitException e) {
+                // Functions that are too big to compile just carry on being interpreted
+            }
+        });
+    }
+}
@@ -0,0 +1,650 @@
+package uk.co.lewisod.lox.jit;
+
+import uk.co.lewisod.lox.Binding;
+import uk.co.lewisod.lox.CompiledFunction;
+import uk.co.lewisod.lox.Expr;
+import uk.co.lewisod.lox.Globals;
+import uk.co.lewisod.lox.Interpreter;
+import uk.co.lewisod.lox.Stmt;
+import uk.co.lewisod.lox.Token;
+import uk.co.lewisod.lox.TokenType;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compiles a function (or the top-level script) to a hidden class with a static method doing the same thing as the
+// Interpreter would. Locals live in JVM locals, except those captured by closures, which hold an Upvalue like they do
+// in the Interpreter. Objects the code needs (e.g. Tokens for error messages) are passed in as the class's class data,
+// and calls go through invokedynamic so they can be linked straight to other compiled functions.
+class JitCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final String OBJECT = "java/lang/Object";
+    private static final String OBJECT_TYPE = "Ljava/lang/Object;";
+    private static final String RUNTIME = "uk/co/lewisod/lox/jit/JitRuntime";
+    private static final String UPVALUE = "uk/co/lewisod/lox/Upvalue";
+    private static final String UPVALUE_TYPE = "Luk/co/lewisod/lox/Upvalue;";
+    private static final String UPVALUE_ARRAY = "[Luk/co/lewisod/lox/Upvalue;";
+    private static final String LOX_FUNCTION = "uk/co/lewisod/lox/LoxFunction";
+    private static final String LOX_FUNCTION_TYPE = "Luk/co/lewisod/lox/LoxFunction;";
+    private static final String GLOBALS = "uk/co/lewisod/lox/Globals";
+    private static final String GLOBALS_TYPE = "Luk/co/lewisod/lox/Globals;";
+    private static final String TOKEN_TYPE = "Luk/co/lewisod/lox/Token;";
+    private static final String PROPERTY_CACHE_TYPE = "Luk/co/lewisod/lox/PropertyCache;";
+    private static final String COMPILED_FUNCTION = "uk/co/lewisod/lox/CompiledFunction";
+    private static final String INTERPRETER = "uk/co/lewisod/lox/Interpreter";
+    private static final String INTERPRETER_TYPE = "Luk/co/lewisod/lox/Interpreter;";
+    private static final String TAIL_CALL = "uk/co/lewisod/lox/TailCall";
+    // Hidden classes are defined in the same package as this
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    // JVM methods can't have more than 255 parameters, or 256 locals without using wide instructions
+    private static final int MAX_LOCALS = 250;
+
+    private final Interpreter interpreter;
+    private final Globals globals;
+    private final String className;
+    private final ClassFile classFile;
+    private final Code code;
+    private final boolean isInitializer;
+    // Objects loaded by the compiled code as dynamic constants, starting with the Interpreter (for calls)
+    private final List<Object> classData = new ArrayList<>();
+    private final Map<Object, Integer> classDataIndexes = new HashMap<>();
+
+    // Parameters are passed in JVM locals 1 onwards, after the LoxFunction being called, so the Resolver's slots line
+    // up with the JVM's. Slot zero ("this" in methods) goes after the rest of the slots, followed by things loaded
+    // from the LoxFunction when it's called.
+    private final int thisLocal;
+    private final int receiverLocal;
+    private final int upvaluesLocal;
+
+    private JitCompiler(Interpreter interpreter, Globals globals, String name, int slots, boolean isInitializer) {
+        if (slots > MAX_LOCALS) {
+            throw new JitException("Too many locals");
+        }
+
+        this.globals = globals;
+        this.isInitializer = isInitializer;
+        this.className = "uk/co/lewisod/lox/jit/Lox$" + name;
+        this.classFile = new ClassFile(className, COMPILED_FUNCTION);
+        this.thisLocal = Math.max(slots, 1);
+        this.receiverLocal = thisLocal + 1;
+        this.upvaluesLocal = thisLocal + 2;
+
+        var locals = new String[upvaluesLocal + 1];
+        locals[0] = LOX_FUNCTION;
+        for (var i = 1; i < upvaluesLocal; i++) {
+            locals[i] = OBJECT;
+        }
+        locals[upvaluesLocal] = UPVALUE_ARRAY;
+        this.code = new Code(classFile, locals);
+
+        this.interpreter = interpreter;
+        classData.add(interpreter);
+        classDataIndexes.put(interpreter, 0);
+    }
+
+    static CompiledFunction compile(Interpreter interpreter, Globals globals, Stmt.Function declaration,
+                                    boolean isInitializer) {
+        var arity = declaration.params.size();
+        var compiler = new JitCompiler(interpreter, globals, declaration.name.lexeme, declaration.slots, isInitializer);
+        var code = compiler.code;
+
+        code.aload(0);
+        code.invokeVirtual(LOX_FUNCTION, "receiver", "()Luk/co/lewisod/lox/LoxInstance;");
+        code.op(Code.DUP, 1);
+        code.astore(compiler.receiverLocal);
+        code.astore(compiler.thisLocal);
+        code.aload(0);
+        code.invokeVirtual(LOX_FUNCTION, "upvalues", "()" + UPVALUE_ARRAY);
+        code.astore(compiler.upvaluesLocal);
+        // Every local has to hold an Object before the first jump, to match the stack map frames
+        for (var slot = arity + 1; slot < declaration.slots; slot++) {
+            code.aconstNull();
+            code.astore(slot);
+        }
+        for (var slot : declaration.cellParams) {
+            code.aload(compiler.local(slot));
+            code.invokeStatic(RUNTIME, "box", "(" + OBJECT_TYPE + ")" + UPVALUE_TYPE);
+            code.astore(compiler.local(slot));
+        }
+
+        compiler.compile(declaration.body);
+        return compiler.finish(arity);
+    }
+
+    static CompiledFunction compileScript(Interpreter interpreter, Globals globals, List<Stmt> statements,
+                                          int scriptSlots) {
+        var compiler = new JitCompiler(interpreter, globals, "script", scriptSlots, false);
+        var code = compiler.code;
+        for (var local = 1; local <= compiler.upvaluesLocal; local++) {
+            code.aconstNull();
+            code.astore(local);
+        }
+
+        compiler.compile(statements);
+        return compiler.finish(0);
+    }
+
+    private CompiledFunction finish(int arity) {
+        if (code.isReachable()) {
+            emitImplicitReturn();
+        }
+
+        var invokeType = "(" + LOX_FUNCTION_TYPE + OBJECT_TYPE.repeat(arity) + ")" + OBJECT_TYPE;
+        classFile.addMethod(0x0009, "invoke", invokeType, code); // ACC_PUBLIC | ACC_STATIC
+
+        var constructor = new Code(classFile, className, "java/lang/invoke/MethodHandle");
+        constructor.aload(0);
+        constructor.aload(1);
+        constructor.invokeSpecial(COMPILED_FUNCTION, "<init>", "(Ljava/lang/invoke/MethodHandle;)V");
+        constructor.returnVoid();
+        classFile.addMethod(0x0001, "<init>", "(Ljava/lang/invoke/MethodHandle;)V", constructor);
+
+        // Unpacks the arguments the Interpreter passes as an array
+        var call = new Code(classFile, className, LOX_FUNCTION, "[" + OBJECT_TYPE);
+        call.aload(1);
+        for (var i = 0; i < arity; i++) {
+            call.aload(2);
+            call.iconst(i);
+            call.op(Code.AALOAD, -1);
+        }
+        call.invokeStatic(className, "invoke", invokeType);
+        call.returnValue();
+        classFile.addMethod(0x0001, "call", "(" + LOX_FUNCTION_TYPE + "[" + OBJECT_TYPE + ")" + OBJECT_TYPE, call);
+
+        try {
+            var lookup = LOOKUP.defineHiddenClassWithClassData(classFile.toBytes(), classData, true);
+            var hiddenClass = lookup.lookupClass();
+            var invoker = lookup.findStatic(hiddenClass, "invoke",
+                    MethodType.fromMethodDescriptorString(invokeType, null));
+            var constructorHandle = lookup.findConstructor(hiddenClass,
+                    MethodType.methodType(void.class, MethodHandle.class));
+            return (CompiledFunction) constructorHandle.invoke(invoker);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void compile(List<Stmt> statements) {
+        for (var statement : statements) {
+            // Anything after a return can't run
+            if (!code.isReachable()) return;
+            compile(statement);
+        }
+    }
+
+    private void compile(Stmt statement) {
+        statement.accept(this);
+    }
+
+    private void compile(Expr expression) {
+        expression.accept(this);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        compile(stmt.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        if (stmt.superclass != null) {
+            compile(stmt.superclass);
+            code.iconst(stmt.superclass.name.line);
+            code.invokeStatic(RUNTIME, "checkSuperclass", "(" + OBJECT_TYPE + "I)" + OBJECT_TYPE);
+            code.invokeStatic(RUNTIME, "box", "(" + OBJECT_TYPE + ")" + UPVALUE_TYPE);
+            code.astore(local(stmt.superSlot));
+        }
+        // Methods referring to the class by name need its Upvalue to exist before they're created
+        if (stmt.cell) {
+            code.aconstNull();
+            code.invokeStatic(RUNTIME, "box", "(" + OBJECT_TYPE + ")" + UPVALUE_TYPE);
+            code.astore(local(stmt.slot));
+        }
+
+        code.ldc(classFile.string(stmt.name.lexeme));
+        if (stmt.superclass != null) {
+            loadCell(local(stmt.superSlot));
+        } else {
+            code.aconstNull();
+        }
+        code.iconst(stmt.methods.size());
+        code.typeOp(Code.ANEWARRAY, LOX_FUNCTION, 0);
+        for (var i = 0; i < stmt.methods.size(); i++) {
+            var method = stmt.methods.get(i);
+            code.op(Code.DUP, 1);
+            code.iconst(i);
+            emitClosure(method, method.name.lexeme.equals("init"));
+            code.op(Code.AASTORE, -3);
+        }
+        code.invokeStatic(RUNTIME, "makeClass",
+                "(Ljava/lang/String;" + OBJECT_TYPE + "[" + LOX_FUNCTION_TYPE + ")" + OBJECT_TYPE);
+
+        if (stmt.cell) {
+            storeCell(local(stmt.slot));
+        } else {
+            emitDefine(stmt.name, stmt.slot, false);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        code.op(Code.POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        // A captured function needs its Upvalue to exist before it's created, in case it refers to itself
+        if (stmt.cell) {
+            code.aconstNull();
+            code.invokeStatic(RUNTIME, "box", "(" + OBJECT_TYPE + ")" + UPVALUE_TYPE);
+            code.astore(local(stmt.slot));
+            emitClosure(stmt, false);
+            storeCell(local(stmt.slot));
+        } else {
+            emitClosure(stmt, false);
+            emitDefine(stmt.name, stmt.slot, false);
+        }
+        return null;
+    }
+
+    // Creates a LoxFunction for a nested function, which gets compiled separately if it gets hot
+    private void emitClosure(Stmt.Function declaration, boolean isInitializer) {
+        constant(declaration, "Luk/co/lewisod/lox/Stmt$Function;");
+        code.iconst(declaration.captureIndexes.length);
+        code.typeOp(Code.ANEWARRAY, UPVALUE, 0);
+        for (var i = 0; i < declaration.captureIndexes.length; i++) {
+            code.op(Code.DUP, 1);
+            code.iconst(i);
+            var index = declaration.captureIndexes[i];
+            if (declaration.capturesLocal[i]) {
+                code.aload(local(index));
+                code.typeOp(Code.CHECKCAST, UPVALUE, 0);
+            } else {
+                code.aload(upvaluesLocal);
+                code.iconst(index);
+                code.op(Code.AALOAD, -1);
+            }
+            code.op(Code.AASTORE, -3);
+        }
+        code.iconst(isInitializer ? 1 : 0);
+        code.invokeStatic(RUNTIME, "closure",
+                "(Luk/co/lewisod/lox/Stmt$Function;" + UPVALUE_ARRAY + "Z)" + LOX_FUNCTION_TYPE);
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        var elseBranch = new Code.Label();
+        var end = new Code.Label();
+
+        compile(stmt.condition);
+        emitIsTruthy();
+        code.jump(Code.IFEQ, elseBranch);
+        compile(stmt.thenBranch);
+        code.jump(Code.GOTO, end);
+
+        code.bind(elseBranch);
+        if (stmt.elseBranch != null) {
+            compile(stmt.elseBranch);
+        }
+        code.bind(end);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        code.invokeStatic(RUNTIME, "print", "(" + OBJECT_TYPE + ")V");
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            emitImplicitReturn();
+        } else if (stmt.tailCall) {
+            emitTailCall((Expr.Call) stmt.value);
+            code.returnValue();
+        } else {
+            compile(stmt.value);
+            code.returnValue();
+        }
+        return null;
+    }
+
+    // Leaves a TailCall for the caller to make if the callee's a Lox function, or the result of calling anything else
+    private void emitTailCall(Expr.Call expr) {
+        constant(interpreter, INTERPRETER_TYPE);
+        compile(expr.callee);
+        code.iconst(expr.arguments.size());
+        code.typeOp(Code.ANEWARRAY, OBJECT, 0);
+        for (var i = 0; i < expr.arguments.size(); i++) {
+            code.op(Code.DUP, 1);
+            code.iconst(i);
+            compile(expr.arguments.get(i));
+            code.op(Code.AASTORE, -3);
+        }
+        code.iconst(expr.paren.line);
+        code.invokeStatic(RUNTIME, "tailCall",
+                "(" + INTERPRETER_TYPE + OBJECT_TYPE + "[" + OBJECT_TYPE + "I)" + OBJECT_TYPE);
+    }
+
+    private void emitImplicitReturn() {
+        // Initializers always return "this"
+        if (isInitializer) {
+            code.aload(receiverLocal);
+        } else {
+            code.aconstNull();
+        }
+        code.returnValue();
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            code.aconstNull();
+        }
+        emitDefine(stmt.name, stmt.slot, stmt.cell);
+        return null;
+    }
+
+    // Stores the value on top of the stack in a newly declared variable. Globals are left with a slot of -1 by the
+    // Resolver, and can only be declared by the top-level script, which is compiled on the main thread.
+    private void emitDefine(Token name, int slot, boolean cell) {
+        if (slot == -1) {
+            constant(globals, GLOBALS_TYPE);
+            code.iconst(globals.indexOf(name.lexeme));
+            code.invokeStatic(RUNTIME, "defineGlobal", "(" + OBJECT_TYPE + GLOBALS_TYPE + "I)V");
+        } else {
+            if (cell) {
+                code.invokeStatic(RUNTIME, "box", "(" + OBJECT_TYPE + ")" + UPVALUE_TYPE);
+            }
+            code.astore(local(slot));
+        }
+    }
+
+    // Numbers are always boxed in compiled code, so a counted loop is compiled like the loop it was recognised from
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        compile(stmt.loop);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        var start = new Code.Label();
+        var exit = new Code.Label();
+
+        code.bind(start);
+        compile(stmt.condition);
+        emitIsTruthy();
+        code.jump(Code.IFEQ, exit);
+        compile(stmt.body);
+        code.jump(Code.GOTO, start);
+        code.bind(exit);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        switch (expr.binding) {
+            case LOCAL -> {
+                code.op(Code.DUP, 1);
+                code.astore(local(expr.index));
+            }
+            case CELL -> {
+                code.op(Code.DUP, 1);
+                storeCell(local(expr.index));
+            }
+            case UPVALUE -> {
+                code.op(Code.DUP, 1);
+                code.aload(upvaluesLocal);
+                code.iconst(expr.index);
+                code.op(Code.AALOAD, -1);
+                code.op(Code.SWAP, 0);
+                code.putField(UPVALUE, "value", OBJECT_TYPE);
+            }
+            case GLOBAL -> {
+                constant(globals, GLOBALS_TYPE);
+                code.iconst(expr.index);
+                code.iconst(expr.name.line);
+                code.invokeStatic(RUNTIME, "assignGlobal", "(" + OBJECT_TYPE + GLOBALS_TYPE + "II)" + OBJECT_TYPE);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+
+        var helper = switch (expr.operator.type) {
+            case MINUS -> "subtract";
+            case SLASH -> "divide";
+            case STAR -> "multiply";
+            case PLUS -> "add";
+            case GREATER -> "greater";
+            case GREATER_EQUAL -> "greaterEqual";
+            case LESS -> "less";
+            case LESS_EQUAL -> "lessEqual";
+            case BANG_EQUAL -> "notEqual";
+            case EQUAL_EQUAL -> "equal";
+            default -> throw new IllegalStateException("Unknown binary expression encountered");
+        };
+        if (expr.operator.type == TokenType.EQUAL_EQUAL || expr.operator.type == TokenType.BANG_EQUAL) {
+            // Equality never fails, so doesn't need a line to report
+            code.invokeStatic(RUNTIME, helper, "(" + OBJECT_TYPE + OBJECT_TYPE + ")" + OBJECT_TYPE);
+        } else {
+            code.iconst(expr.operator.line);
+            code.invokeStatic(RUNTIME, helper, "(" + OBJECT_TYPE + OBJECT_TYPE + "I)" + OBJECT_TYPE);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if (expr.arguments.size() > MAX_LOCALS) {
+            throw new JitException("Too many arguments");
+        }
+
+        compile(expr.callee);
+        for (var argument : expr.arguments) {
+            compile(argument);
+        }
+
+        var bootstrap = classFile.bootstrapMethod(classFile.staticMethodHandle(RUNTIME, "bootstrapCall",
+                "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;I)"
+                        + "Ljava/lang/invoke/CallSite;"),
+                classFile.integer(expr.paren.line));
+        var descriptor = "(" + OBJECT_TYPE.repeat(expr.arguments.size() + 1) + ")" + OBJECT_TYPE;
+        // Compiled functions call each other directly, so the call depth is counted here rather than by the callee
+        constant(interpreter, INTERPRETER_TYPE);
+        code.iconst(expr.paren.line);
+        code.invokeVirtual(INTERPRETER, "enterCall", "(I)V");
+        code.invokeDynamic(bootstrap, "call", descriptor);
+        // Compiled functions can give back a tail call for their caller to make
+        constant(interpreter, INTERPRETER_TYPE);
+        code.invokeStatic(TAIL_CALL, "complete", "(" + OBJECT_TYPE + INTERPRETER_TYPE + ")" + OBJECT_TYPE);
+        constant(interpreter, INTERPRETER_TYPE);
+        code.invokeVirtual(INTERPRETER, "exitCall", "()V");
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        constant(expr.name, TOKEN_TYPE);
+        constant(expr.cache, PROPERTY_CACHE_TYPE);
+        code.invokeStatic(RUNTIME, "getProperty",
+                "(" + OBJECT_TYPE + TOKEN_TYPE + PROPERTY_CACHE_TYPE + ")" + OBJECT_TYPE);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        code.iconst(expr.name.line);
+        code.invokeStatic(RUNTIME, "checkFields", "(" + OBJECT_TYPE + "I)" + OBJECT_TYPE);
+        compile(expr.value);
+        constant(expr.name, TOKEN_TYPE);
+        constant(expr.cache, PROPERTY_CACHE_TYPE);
+        code.invokeStatic(RUNTIME, "setProperty",
+                "(" + OBJECT_TYPE + OBJECT_TYPE + TOKEN_TYPE + PROPERTY_CACHE_TYPE + ")" + OBJECT_TYPE);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        emitLoad(expr.binding, expr.index, expr.keyword);
+        emitLoad(expr.thisBinding, expr.thisIndex, expr.keyword);
+        constant(expr.method, TOKEN_TYPE);
+        code.invokeStatic(RUNTIME, "getSuper", "(" + OBJECT_TYPE + OBJECT_TYPE + TOKEN_TYPE + ")" + OBJECT_TYPE);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        emitLoad(expr.binding, expr.index, expr.keyword);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitInlineExpr(Expr.Inline expr) {
+        if (expr.callee != null) {
+            compile(expr.callee);
+            code.op(Code.POP, -1);
+        }
+        for (var i = 0; i < expr.arguments.size(); i++) {
+            compile(expr.arguments.get(i));
+            code.astore(local(expr.firstSlot + i));
+        }
+        compile(expr.body);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            code.aconstNull();
+        } else if (expr.value instanceof Boolean value) {
+            code.getStatic("java/lang/Boolean", value ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
+        } else if (expr.value instanceof String value) {
+            code.ldc(classFile.string(value));
+        } else {
+            // Loading the Double as a constant means it isn't boxed again every time
+            constant(expr.value, OBJECT_TYPE);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        var end = new Code.Label();
+
+        compile(expr.left);
+        code.op(Code.DUP, 1);
+        emitIsTruthy();
+        code.jump(expr.operator.type == TokenType.OR ? Code.IFNE : Code.IFEQ, end);
+        code.op(Code.POP, -1);
+        compile(expr.right);
+        code.bind(end);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+
+        switch (expr.operator.type) {
+            case MINUS -> {
+                code.iconst(expr.operator.line);
+                code.invokeStatic(RUNTIME, "negate", "(" + OBJECT_TYPE + "I)" + OBJECT_TYPE);
+            }
+            case BANG -> code.invokeStatic(RUNTIME, "not", "(" + OBJECT_TYPE + ")" + OBJECT_TYPE);
+            default -> throw new IllegalStateException("Unknown unary expression encountered");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        emitLoad(expr.binding, expr.index, expr.name);
+        return null;
+    }
+
+    private void emitLoad(Binding binding, int index, Token name) {
+        switch (binding) {
+            case LOCAL -> code.aload(local(index));
+            case CELL -> loadCell(local(index));
+            case UPVALUE -> {
+                code.aload(upvaluesLocal);
+                code.iconst(index);
+                code.op(Code.AALOAD, -1);
+                code.getField(UPVALUE, "value", OBJECT_TYPE);
+            }
+            case GLOBAL -> {
+                constant(globals, GLOBALS_TYPE);
+                code.iconst(index);
+                code.iconst(name.line);
+                code.invokeVirtual(GLOBALS, "get", "(II)" + OBJECT_TYPE);
+            }
+        }
+    }
+
+    private void loadCell(int local) {
+        code.aload(local);
+        code.typeOp(Code.CHECKCAST, UPVALUE, 0);
+        code.getField(UPVALUE, "value", OBJECT_TYPE);
+    }
+
+    // Pops the value on top of the stack into the Upvalue held by the local
+    private void storeCell(int local) {
+        code.aload(local);
+        code.typeOp(Code.CHECKCAST, UPVALUE, 0);
+        code.op(Code.SWAP, 0);
+        code.putField(UPVALUE, "value", OBJECT_TYPE);
+    }
+
+    private void emitIsTruthy() {
+        code.invokeStatic(INTERPRETER, "isTruthy", "(" + OBJECT_TYPE + ")Z");
+    }
+
+    private int local(int slot) {
+        return slot == 0 ? thisLocal : slot;
+    }
+
+    // Loads an object from the class data, which the JVM treats as a true constant
+    private void constant(Object value, String descriptor) {
+        var index = classDataIndexes.get(value);
+        if (index == null) {
+            index = classData.size();
+            classData.add(value);
+            classDataIndexes.put(value, index);
+        }
+
+        var bootstrap = classFile.bootstrapMethod(classFile.staticMethodHandle("java/lang/invoke/MethodHandles",
+                "classDataAt",
+                "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;I)" + OBJECT_TYPE),
+                classFile.integer(index));
+        code.ldc(classFile.dynamic(bootstrap, "_", descriptor));
+    }
+}
@@ -0,0 +1,8 @@
+package uk.co.lewisod.lox.jit;
+
+// Thrown when a function can't be compiled (e.g. it's too big for a JVM method), so it should carry on being interpreted
+public class JitException extends RuntimeException {
+    public JitException(String message) {
+        super(message);
+    }
+}
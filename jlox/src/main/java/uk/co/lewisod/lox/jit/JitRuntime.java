@@ -0,0 +1,261 @@
+package uk.co.lewisod.lox.jit;
+
+import uk.co.lewisod.lox.CompiledFunction;
+import uk.co.lewisod.lox.Globals;
+import uk.co.lewisod.lox.Interpreter;
+import uk.co.lewisod.lox.LoxCallable;
+import uk.co.lewisod.lox.LoxClass;
+import uk.co.lewisod.lox.LoxFunction;
+import uk.co.lewisod.lox.LoxInstance;
+import uk.co.lewisod.lox.PropertyCache;
+import uk.co.lewisod.lox.Rope;
+import uk.co.lewisod.lox.RuntimeError;
+import uk.co.lewisod.lox.Stmt;
+import uk.co.lewisod.lox.TailCall;
+import uk.co.lewisod.lox.Token;
+import uk.co.lewisod.lox.Upvalue;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.HashMap;
+
+// Everything compiled code needs that's easier to write in Java than to generate. These behave exactly like the
+// corresponding parts of the Interpreter, including the errors they throw. HotSpot inlines them into the compiled
+// functions that call them.
+public class JitRuntime {
+    private JitRuntime() {
+    }
+
+    public static Object not(Object value) {
+        return !Interpreter.isTruthy(value);
+    }
+
+    public static Object negate(Object value, int line) {
+        if (value instanceof Double number) {
+            return -number;
+        }
+        throw new RuntimeError(line, "Operand must be a number");
+    }
+
+    public static Object add(Object left, Object right, int line) {
+        if (left instanceof Double first && right instanceof Double second) {
+            return first + second;
+        }
+        if (left instanceof CharSequence first && right instanceof CharSequence second) {
+            return Rope.concat(first, second);
+        }
+        throw new RuntimeError(line, "Operands must both be numbers or strings");
+    }
+
+    public static Object subtract(Object left, Object right, int line) {
+        checkNumberOperands(left, right, line);
+        return (double) left - (double) right;
+    }
+
+    public static Object multiply(Object left, Object right, int line) {
+        checkNumberOperands(left, right, line);
+        return (double) left * (double) right;
+    }
+
+    public static Object divide(Object left, Object right, int line) {
+        checkNumberOperands(left, right, line);
+        if (right.equals(0.0)) {
+            throw new RuntimeError(line, "Cannot divide by zero");
+        }
+        return (double) left / (double) right;
+    }
+
+    public static Object greater(Object left, Object right, int line) {
+        checkNumberOperands(left, right, line);
+        return (double) left > (double) right;
+    }
+
+    public static Object greaterEqual(Object left, Object right, int line) {
+        checkNumberOperands(left, right, line);
+        return (double) left >= (double) right;
+    }
+
+    public static Object less(Object left, Object right, int line) {
+        checkNumberOperands(left, right, line);
+        return (double) left < (double) right;
+    }
+
+    public static Object lessEqual(Object left, Object right, int line) {
+        checkNumberOperands(left, right, line);
+        return (double) left <= (double) right;
+    }
+
+    private static void checkNumberOperands(Object left, Object right, int line) {
+        if (left instanceof Double && right instanceof Double) return;
+        throw new RuntimeError(line, "Operands must be numbers");
+    }
+
+    public static Object equal(Object left, Object right) {
+        return Interpreter.isEqual(left, right);
+    }
+
+    public static Object notEqual(Object left, Object right) {
+        return !Interpreter.isEqual(left, right);
+    }
+
+    public static void print(Object value) {
+        System.out.println(Interpreter.stringify(value));
+    }
+
+    public static Upvalue box(Object value) {
+        return new Upvalue(value);
+    }
+
+    public static void defineGlobal(Object value, Globals globals, int index) {
+        globals.define(index, value);
+    }
+
+    public static Object assignGlobal(Object value, Globals globals, int index, int line) {
+        globals.assign(index, line, value);
+        return value;
+    }
+
+    public static Object getProperty(Object object, Token name, PropertyCache cache) {
+        if (object instanceof LoxInstance instance) {
+            return instance.get(name, cache);
+        }
+        throw new RuntimeError(name, "Only instances of classes have properties.");
+    }
+
+    // Called before the value being assigned to a property is evaluated, like in the Interpreter
+    public static Object checkFields(Object object, int line) {
+        if (object instanceof LoxInstance) {
+            return object;
+        }
+        throw new RuntimeError(line, "Only instances of classes have fields.");
+    }
+
+    public static Object setProperty(Object object, Object value, Token name, PropertyCache cache) {
+        ((LoxInstance) object).set(name, value, cache);
+        return value;
+    }
+
+    public static Object getSuper(Object superclass, Object object, Token method) {
+        var function = ((LoxClass) superclass).findMethod(method.lexeme);
+        if (function == null) {
+            throw new RuntimeError(method, "Undefined property '" + method.lexeme + ".");
+        }
+        return function.bind((LoxInstance) object);
+    }
+
+    public static LoxFunction closure(Stmt.Function declaration, Upvalue[] upvalues, boolean isInitializer) {
+        return new LoxFunction(declaration, upvalues, isInitializer);
+    }
+
+    public static Object checkSuperclass(Object superclass, int line) {
+        if (superclass instanceof LoxClass) {
+            return superclass;
+        }
+        throw new RuntimeError(line, "Superclass must be a class.");
+    }
+
+    public static Object makeClass(String name, Object superclass, LoxFunction[] methods) {
+        var methodsByName = new HashMap<String, LoxFunction>();
+        for (var method : methods) {
+            methodsByName.put(method.declaration().name.lexeme, method);
+        }
+        if (superclass == null) {
+            return new LoxClass(name, methodsByName);
+        }
+        return ((LoxClass) superclass).subclass(name, methodsByName);
+    }
+
+    public static Object call(Interpreter interpreter, Object callee, Object[] arguments, int line) {
+        if (!(callee instanceof LoxCallable callable)) {
+            throw new RuntimeError(line, "Can only call functions and classes");
+        }
+        if (arguments.length != callable.arity()) {
+            throw new RuntimeError(line, "Expected " + callable.arity() + " arguments but got " + arguments.length + ".");
+        }
+        return callable.callArray(interpreter, arguments);
+    }
+
+    // Calls made by return statements give back a TailCall for the caller to make, if the callee's a Lox function
+    public static Object tailCall(Interpreter interpreter, Object callee, Object[] arguments, int line) {
+        if (callee instanceof LoxFunction function && arguments.length == function.arity()) {
+            return new TailCall(function, function.receiver(), arguments);
+        }
+
+        // Anything else is called as normal, which also reports it if it can't be called
+        interpreter.enterCall(line);
+        var result = call(interpreter, callee, arguments, line);
+        interpreter.exitCall();
+        return result;
+    }
+
+    // Bootstrap method for the invokedynamic instruction compiled for each call expression. The line is passed as a
+    // static argument, and the Interpreter is the first entry in the compiled class's class data.
+    public static CallSite bootstrapCall(MethodHandles.Lookup lookup, String name, MethodType type, int line)
+            throws IllegalAccessException {
+        var interpreter = MethodHandles.classDataAt(lookup, "_", Interpreter.class, 0);
+        return new InlineCache(interpreter, type, line);
+    }
+
+    // Links calls to compiled Lox functions straight to their compiled code, guarded by a check the callee is still
+    // the same function. Anything else (classes, native functions, functions that are still being interpreted) goes
+    // through the same slow path as the Interpreter, which also notices when a function's been compiled since.
+    private static class InlineCache extends MutableCallSite {
+        // How many different functions a call site will link to before giving up and always taking the slow path
+        private static final int MAX_TARGETS = 4;
+        private static final MethodHandle FALLBACK;
+        private static final MethodHandle IS_DECLARATION;
+
+        static {
+            var lookup = MethodHandles.lookup();
+            try {
+                FALLBACK = lookup.findVirtual(InlineCache.class, "fallback",
+                        MethodType.methodType(Object.class, Object.class, Object[].class));
+                IS_DECLARATION = lookup.findStatic(InlineCache.class, "isDeclaration",
+                        MethodType.methodType(boolean.class, Stmt.Function.class, Object.class));
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private final Interpreter interpreter;
+        private final int line;
+        private final MethodHandle fallback;
+        private int targets = 0;
+
+        InlineCache(Interpreter interpreter, MethodType type, int line) {
+            super(type);
+            this.interpreter = interpreter;
+            this.line = line;
+            this.fallback = FALLBACK.bindTo(this)
+                    .asCollector(Object[].class, type.parameterCount() - 1)
+                    .asType(type);
+            setTarget(fallback);
+        }
+
+        private Object fallback(Object callee, Object[] arguments) {
+            if (targets < MAX_TARGETS && callee instanceof LoxFunction function
+                    && function.arity() == arguments.length) {
+                var compiled = function.declaration().compiled;
+                if (compiled != null) {
+                    link(function.declaration(), compiled);
+                }
+            }
+            return call(interpreter, callee, arguments, line);
+        }
+
+        private void link(Stmt.Function declaration, CompiledFunction compiled) {
+            var type = type();
+            var test = MethodHandles.dropArguments(IS_DECLARATION.bindTo(declaration), 1,
+                    type.parameterList().subList(1, type.parameterCount()));
+            setTarget(MethodHandles.guardWithTest(test, compiled.invoker().asType(type), getTarget()));
+            targets++;
+        }
+
+        private static boolean isDeclaration(Stmt.Function declaration, Object callee) {
+            return callee instanceof LoxFunction function && function.declaration() == declaration;
+        }
+    }
+}
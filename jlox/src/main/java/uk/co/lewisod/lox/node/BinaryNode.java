@@ -0,0 +1,255 @@
+package uk.co.lewisod.lox.node;
+
+import uk.co.lewisod.lox.Environment;
+import uk.co.lewisod.lox.Interpreter;
+import uk.co.lewisod.lox.Rope;
+import uk.co.lewisod.lox.RuntimeError;
+import uk.co.lewisod.lox.Token;
+
+// A binary operator. Each starts off uninitialized, and the first time it runs replaces itself with a node specialised
+// for the types of its operands (e.g. adding two numbers). If a specialised node ever sees operands of another type it
+// gives up and replaces itself with a generic node that handles everything, so it never gets rewritten more than twice.
+abstract class BinaryNode extends ExprNode.Binary {
+    protected final Token operator;
+
+    BinaryNode(Token operator, ExprNode left, ExprNode right) {
+        super(left, right);
+        this.operator = operator;
+    }
+
+    static BinaryNode create(Token operator, ExprNode left, ExprNode right) {
+        return new Uninitialized(operator, left, right);
+    }
+
+    @Override
+    public Object execute(Environment environment) {
+        var leftValue = left.execute(environment);
+        var rightValue = right.execute(environment);
+        return apply(leftValue, rightValue);
+    }
+
+    abstract Object apply(Object leftValue, Object rightValue);
+
+    protected Object generalize(Object leftValue, Object rightValue) {
+        return replace(new Generic(operator, left, right)).apply(leftValue, rightValue);
+    }
+
+    static class Uninitialized extends BinaryNode {
+        Uninitialized(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object apply(Object leftValue, Object rightValue) {
+            return replace(specialize(leftValue, rightValue)).apply(leftValue, rightValue);
+        }
+
+        private BinaryNode specialize(Object leftValue, Object rightValue) {
+            var numbers = leftValue instanceof Double && rightValue instanceof Double;
+            var strings = leftValue instanceof CharSequence && rightValue instanceof CharSequence;
+            return switch (operator.type) {
+                case PLUS -> numbers ? new Add(operator, left, right)
+                        : strings ? new Concatenate(operator, left, right)
+                        : new Generic(operator, left, right);
+                case MINUS -> numbers ? new Subtract(operator, left, right) : new Generic(operator, left, right);
+                case STAR -> numbers ? new Multiply(operator, left, right) : new Generic(operator, left, right);
+                case SLASH -> numbers ? new Divide(operator, left, right) : new Generic(operator, left, right);
+                case GREATER -> numbers ? new Greater(operator, left, right) : new Generic(operator, left, right);
+                case GREATER_EQUAL -> numbers ? new GreaterEqual(operator, left, right) : new Generic(operator, left, right);
+                case LESS -> numbers ? new Less(operator, left, right) : new Generic(operator, left, right);
+                case LESS_EQUAL -> numbers ? new LessEqual(operator, left, right) : new Generic(operator, left, right);
+                // Equality works on any types, so there's nothing to specialise
+                case EQUAL_EQUAL, BANG_EQUAL -> new Generic(operator, left, right);
+                default -> throw new IllegalStateException("Unknown binary expression encountered");
+            };
+        }
+    }
+
+    static class Add extends BinaryNode {
+        Add(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object apply(Object leftValue, Object rightValue) {
+            if (leftValue instanceof Double first && rightValue instanceof Double second) {
+                return first + second;
+            }
+            return generalize(leftValue, rightValue);
+        }
+    }
+
+    static class Concatenate extends BinaryNode {
+        Concatenate(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object apply(Object leftValue, Object rightValue) {
+            if (leftValue instanceof CharSequence first && rightValue instanceof CharSequence second) {
+                return Rope.concat(first, second);
+            }
+            return generalize(leftValue, rightValue);
+        }
+    }
+
+    static class Subtract extends BinaryNode {
+        Subtract(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object apply(Object leftValue, Object rightValue) {
+            if (leftValue instanceof Double first && rightValue instanceof Double second) {
+                return first - second;
+            }
+            return generalize(leftValue, rightValue);
+        }
+    }
+
+    static class Multiply extends BinaryNode {
+        Multiply(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object apply(Object leftValue, Object rightValue) {
+            if (leftValue instanceof Double first && rightValue instanceof Double second) {
+                return first * second;
+            }
+            return generalize(leftValue, rightValue);
+        }
+    }
+
+    static class Divide extends BinaryNode {
+        Divide(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object apply(Object leftValue, Object rightValue) {
+            // Dividing by zero is an error, which the generic node reports
+            if (leftValue instanceof Double first && rightValue instanceof Double second && second != 0.0) {
+                return first / second;
+            }
+            return generalize(leftValue, rightValue);
+        }
+    }
+
+    // Comparisons also avoid boxing their result when used as a condition
+    abstract static class Comparison extends BinaryNode {
+        Comparison(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object apply(Object leftValue, Object rightValue) {
+            if (leftValue instanceof Double first && rightValue instanceof Double second) {
+                return compare(first, second);
+            }
+            return generalize(leftValue, rightValue);
+        }
+
+        @Override
+        public boolean executeBoolean(Environment environment) {
+            var leftValue = left.execute(environment);
+            var rightValue = right.execute(environment);
+            if (leftValue instanceof Double first && rightValue instanceof Double second) {
+                return compare(first, second);
+            }
+            return Interpreter.isTruthy(generalize(leftValue, rightValue));
+        }
+
+        abstract boolean compare(double first, double second);
+    }
+
+    static class Greater extends Comparison {
+        Greater(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        boolean compare(double first, double second) {
+            return first > second;
+        }
+    }
+
+    static class GreaterEqual extends Comparison {
+        GreaterEqual(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        boolean compare(double first, double second) {
+            return first >= second;
+        }
+    }
+
+    static class Less extends Comparison {
+        Less(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        boolean compare(double first, double second) {
+            return first < second;
+        }
+    }
+
+    static class LessEqual extends Comparison {
+        LessEqual(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        boolean compare(double first, double second) {
+            return first <= second;
+        }
+    }
+
+    // Handles any operands, with the same checks and errors as the Interpreter
+    static class Generic extends BinaryNode {
+        Generic(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object apply(Object leftValue, Object rightValue) {
+            return switch (operator.type) {
+                case PLUS -> {
+                    if (leftValue instanceof Double first && rightValue instanceof Double second) {
+                        yield first + second;
+                    }
+                    if (leftValue instanceof CharSequence first && rightValue instanceof CharSequence second) {
+                        yield Rope.concat(first, second);
+                    }
+                    throw new RuntimeError(operator, "Operands must both be numbers or strings");
+                }
+                case MINUS -> number(leftValue) - number(rightValue);
+                case STAR -> number(leftValue) * number(rightValue);
+                case SLASH -> {
+                    var first = number(leftValue);
+                    var second = number(rightValue);
+                    if (rightValue.equals(0.0)) {
+                        throw new RuntimeError(operator, "Cannot divide by zero");
+                    }
+                    yield first / second;
+                }
+                case GREATER -> number(leftValue) > number(rightValue);
+                case GREATER_EQUAL -> number(leftValue) >= number(rightValue);
+                case LESS -> number(leftValue) < number(rightValue);
+                case LESS_EQUAL -> number(leftValue) <= number(rightValue);
+                case EQUAL_EQUAL -> Interpreter.isEqual(leftValue, rightValue);
+                case BANG_EQUAL -> !Interpreter.isEqual(leftValue, rightValue);
+                default -> throw new IllegalStateException("Unknown binary expression encountered");
+            };
+        }
+
+        private double number(Object value) {
+            if (value instanceof Double number) {
+                return number;
+            }
+            throw new RuntimeError(operator, "Operands must be numbers");
+        }
+    }
+}
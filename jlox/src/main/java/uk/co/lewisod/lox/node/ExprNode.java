@@ -0,0 +1,552 @@
+package uk.co.lewisod.lox.node;
+
+import uk.co.lewisod.lox.Environment;
+import uk.co.lewisod.lox.Globals;
+import uk.co.lewisod.lox.Interpreter;
+import uk.co.lewisod.lox.LoxCallable;
+import uk.co.lewisod.lox.LoxClass;
+import uk.co.lewisod.lox.LoxFunction;
+import uk.co.lewisod.lox.LoxInstance;
+import uk.co.lewisod.lox.PropertyCache;
+import uk.co.lewisod.lox.RuntimeError;
+import uk.co.lewisod.lox.Stmt;
+import uk.co.lewisod.lox.TailCall;
+import uk.co.lewisod.lox.Token;
+import uk.co.lewisod.lox.Upvalue;
+
+import java.util.HashMap;
+
+// An expression that can be executed. Each kind of variable access gets its own node, so nothing has to switch on how
+// a variable was resolved at runtime.
+public abstract class ExprNode extends Node {
+    public abstract Object execute(Environment environment);
+
+    // Conditions call this, so nodes that produce booleans can avoid boxing them
+    public boolean executeBoolean(Environment environment) {
+        return Interpreter.isTruthy(execute(environment));
+    }
+
+    static class Constant extends ExprNode {
+        private final Object value;
+
+        Constant(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            return value;
+        }
+    }
+
+    static class ReadLocal extends ExprNode {
+        private final int slot;
+
+        ReadLocal(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            return environment.get(slot);
+        }
+    }
+
+    static class ReadCell extends ExprNode {
+        private final int slot;
+
+        ReadCell(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            return ((Upvalue) environment.get(slot)).value;
+        }
+    }
+
+    static class ReadUpvalue extends ExprNode {
+        private final int index;
+
+        ReadUpvalue(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            return environment.upvalue(index).value;
+        }
+    }
+
+    static class ReadGlobal extends ExprNode {
+        private final Globals globals;
+        private final int index;
+        private final int line;
+
+        ReadGlobal(Globals globals, int index, int line) {
+            this.globals = globals;
+            this.index = index;
+            this.line = line;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            return globals.get(index, line);
+        }
+    }
+
+    // Base class for nodes evaluating a single child, which may replace itself
+    abstract static class Unary extends ExprNode {
+        protected ExprNode operand;
+
+        Unary(ExprNode operand) {
+            this.operand = adopt(operand);
+        }
+
+        @Override
+        protected void replaceChild(Node oldChild, Node newChild) {
+            operand = (ExprNode) newChild;
+        }
+    }
+
+    static class WriteLocal extends Unary {
+        private final int slot;
+
+        WriteLocal(int slot, ExprNode value) {
+            super(value);
+            this.slot = slot;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            var value = operand.execute(environment);
+            environment.set(slot, value);
+            return value;
+        }
+    }
+
+    static class WriteCell extends Unary {
+        private final int slot;
+
+        WriteCell(int slot, ExprNode value) {
+            super(value);
+            this.slot = slot;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            var value = operand.execute(environment);
+            ((Upvalue) environment.get(slot)).value = value;
+            return value;
+        }
+    }
+
+    static class WriteUpvalue extends Unary {
+        private final int index;
+
+        WriteUpvalue(int index, ExprNode value) {
+            super(value);
+            this.index = index;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            var value = operand.execute(environment);
+            environment.upvalue(index).value = value;
+            return value;
+        }
+    }
+
+    static class WriteGlobal extends Unary {
+        private final Globals globals;
+        private final int index;
+        private final int line;
+
+        WriteGlobal(Globals globals, int index, int line, ExprNode value) {
+            super(value);
+            this.globals = globals;
+            this.index = index;
+            this.line = line;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            var value = operand.execute(environment);
+            globals.assign(index, line, value);
+            return value;
+        }
+    }
+
+    static class Not extends Unary {
+        Not(ExprNode operand) {
+            super(operand);
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            return executeBoolean(environment);
+        }
+
+        @Override
+        public boolean executeBoolean(Environment environment) {
+            return !operand.executeBoolean(environment);
+        }
+    }
+
+    static class GetProperty extends Unary {
+        private final Token name;
+        private final PropertyCache cache;
+
+        GetProperty(ExprNode object, Token name, PropertyCache cache) {
+            super(object);
+            this.name = name;
+            this.cache = cache;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            var object = operand.execute(environment);
+            if (object instanceof LoxInstance instance) {
+                return instance.get(name, cache);
+            }
+
+            throw new RuntimeError(name, "Only instances of classes have properties.");
+        }
+    }
+
+    // Base class for nodes evaluating two children, either of which may replace itself
+    abstract static class Binary extends ExprNode {
+        protected ExprNode left;
+        protected ExprNode right;
+
+        Binary(ExprNode left, ExprNode right) {
+            this.left = adopt(left);
+            this.right = adopt(right);
+        }
+
+        @Override
+        protected void replaceChild(Node oldChild, Node newChild) {
+            if (left == oldChild) left = (ExprNode) newChild;
+            if (right == oldChild) right = (ExprNode) newChild;
+        }
+    }
+
+    static class And extends Binary {
+        And(ExprNode left, ExprNode right) {
+            super(left, right);
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            var value = left.execute(environment);
+            if (!Interpreter.isTruthy(value)) return value;
+            return right.execute(environment);
+        }
+    }
+
+    static class Or extends Binary {
+        Or(ExprNode left, ExprNode right) {
+            super(left, right);
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            var value = left.execute(environment);
+            if (Interpreter.isTruthy(value)) return value;
+            return right.execute(environment);
+        }
+    }
+
+    static class SetProperty extends Binary {
+        private final Token name;
+        private final PropertyCache cache;
+
+        SetProperty(ExprNode object, Token name, ExprNode value, PropertyCache cache) {
+            super(object, value);
+            this.name = name;
+            this.cache = cache;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            var object = left.execute(environment);
+            if (object instanceof LoxInstance instance) {
+                var value = right.execute(environment);
+                instance.set(name, value, cache);
+                return value;
+            }
+
+            throw new RuntimeError(name, "Only instances of classes have fields.");
+        }
+    }
+
+    // Children are the reads of "super" and "this"
+    static class Super extends Binary {
+        private final Token method;
+
+        Super(ExprNode superclass, ExprNode object, Token method) {
+            super(superclass, object);
+            this.method = method;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            var superclass = (LoxClass) left.execute(environment);
+            var object = (LoxInstance) right.execute(environment);
+            var function = superclass.findMethod(method.lexeme);
+            if (function == null) {
+                throw new RuntimeError(method, "Undefined property '" + method.lexeme + ".");
+            }
+            return function.bind(object);
+        }
+    }
+
+    // Base class for calls, which evaluate their target (e.g. the function being called) then their arguments
+    // The body of a function inlined at a call site, with the arguments stored in slots set aside for it in the
+    // caller's frame. The callee is only there to check a global function has been defined.
+    static class Inline extends ExprNode {
+        private ExprNode callee;
+        private final int firstSlot;
+        private final ExprNode[] arguments;
+        private ExprNode body;
+
+        Inline(ExprNode callee, int firstSlot, ExprNode[] arguments, ExprNode body) {
+            this.callee = adopt(callee);
+            this.firstSlot = firstSlot;
+            this.arguments = arguments;
+            for (var argument : arguments) {
+                adopt(argument);
+            }
+            this.body = adopt(body);
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            if (callee != null) {
+                callee.execute(environment);
+            }
+            for (var i = 0; i < arguments.length; i++) {
+                environment.set(firstSlot + i, arguments[i].execute(environment));
+            }
+            return body.execute(environment);
+        }
+
+        @Override
+        protected void replaceChild(Node oldChild, Node newChild) {
+            if (callee == oldChild) callee = (ExprNode) newChild;
+            if (body == oldChild) body = (ExprNode) newChild;
+            for (var i = 0; i < arguments.length; i++) {
+                if (arguments[i] == oldChild) arguments[i] = (ExprNode) newChild;
+            }
+        }
+    }
+
+    abstract static class Invocation extends ExprNode {
+        protected final Interpreter interpreter;
+        protected final Token paren;
+        protected ExprNode target;
+        private final ExprNode[] arguments;
+        private LoxCallable cachedCallee;
+        // Set on calls made by return statements, which give back a TailCall for the caller to make rather than
+        // calling a Lox function themselves
+        boolean tail = false;
+
+        Invocation(Interpreter interpreter, Token paren, ExprNode target, ExprNode[] arguments) {
+            this.interpreter = interpreter;
+            this.paren = paren;
+            this.target = adopt(target);
+            this.arguments = arguments;
+            for (var argument : arguments) {
+                adopt(argument);
+            }
+        }
+
+        protected Object[] evaluateArguments(Environment environment) {
+            var values = new Object[arguments.length];
+            for (var i = 0; i < values.length; i++) {
+                values[i] = arguments[i].execute(environment);
+            }
+            return values;
+        }
+
+        // The last callee that passed the checks is cached, so calling the same thing again skips them
+        protected LoxCallable checkCallable(Object callee, Object[] values) {
+            var cached = cachedCallee;
+            if (callee == cached && cached != null) {
+                return cached;
+            }
+
+            if (!(callee instanceof LoxCallable callable)) {
+                throw new RuntimeError(paren, "Can only call functions and classes");
+            }
+            if (values.length != callable.arity()) {
+                throw new RuntimeError(paren,
+                        "Expected " + callable.arity() + " arguments but got " + values.length + ".");
+            }
+            cachedCallee = callable;
+            return callable;
+        }
+
+        protected Object call(LoxCallable callable, Object[] values) {
+            if (tail && callable instanceof LoxFunction function) {
+                return new TailCall(function, function.receiver(), values);
+            }
+
+            interpreter.enterCall(paren.line);
+            var result = callable.callArray(interpreter, values);
+            interpreter.exitCall();
+            return result;
+        }
+
+        protected Object invoke(LoxFunction method, LoxInstance receiver, Object[] values) {
+            if (tail) {
+                return new TailCall(method, receiver, values);
+            }
+
+            interpreter.enterCall(paren.line);
+            var result = method.invokeArray(interpreter, receiver, values);
+            interpreter.exitCall();
+            return result;
+        }
+
+        @Override
+        protected void replaceChild(Node oldChild, Node newChild) {
+            if (target == oldChild) target = (ExprNode) newChild;
+            for (var i = 0; i < arguments.length; i++) {
+                if (arguments[i] == oldChild) arguments[i] = (ExprNode) newChild;
+            }
+        }
+    }
+
+    static class Call extends Invocation {
+        Call(Interpreter interpreter, Token paren, ExprNode callee, ExprNode[] arguments) {
+            super(interpreter, paren, callee, arguments);
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            var callee = target.execute(environment);
+            var values = evaluateArguments(environment);
+            return call(checkCallable(callee, values), values);
+        }
+    }
+
+    // Calls a method straight away, passing it the receiver rather than binding it first. The target is the object
+    // the method is looked up on.
+    static class InvokeProperty extends Invocation {
+        private final Token name;
+        private final PropertyCache cache;
+
+        InvokeProperty(Interpreter interpreter, Token paren, ExprNode object, Token name, PropertyCache cache,
+                       ExprNode[] arguments) {
+            super(interpreter, paren, object, arguments);
+            this.name = name;
+            this.cache = cache;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            if (!(target.execute(environment) instanceof LoxInstance instance)) {
+                throw new RuntimeError(name, "Only instances of classes have properties.");
+            }
+
+            var method = instance.getMethod(name, cache);
+            if (method == null) {
+                // The property's a field, which could hold anything
+                var callee = instance.get(name, cache);
+                var values = evaluateArguments(environment);
+                return call(checkCallable(callee, values), values);
+            }
+
+            var values = evaluateArguments(environment);
+            checkCallable(method, values);
+            return invoke(method, instance, values);
+        }
+    }
+
+    // Calls a superclass's method on "this", which is the target
+    static class InvokeSuper extends Invocation {
+        private final ExprNode superclass;
+        private final Token method;
+
+        InvokeSuper(Interpreter interpreter, Token paren, ExprNode superclass, ExprNode object, Token method,
+                    ExprNode[] arguments) {
+            super(interpreter, paren, object, arguments);
+            this.superclass = adopt(superclass);
+            this.method = method;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            var function = ((LoxClass) superclass.execute(environment)).findMethod(method.lexeme);
+            if (function == null) {
+                throw new RuntimeError(method, "Undefined property '" + method.lexeme + ".");
+            }
+            var object = (LoxInstance) target.execute(environment);
+
+            var values = evaluateArguments(environment);
+            checkCallable(function, values);
+            return invoke(function, object, values);
+        }
+    }
+
+    // Creates a LoxFunction, capturing the variables it refers to from the environment it's created in
+    static class Closure extends ExprNode {
+        private final Stmt.Function declaration;
+        private final boolean isInitializer;
+
+        Closure(Stmt.Function declaration, boolean isInitializer) {
+            this.declaration = declaration;
+            this.isInitializer = isInitializer;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            var upvalues = new Upvalue[declaration.captureIndexes.length];
+            for (var i = 0; i < upvalues.length; i++) {
+                var index = declaration.captureIndexes[i];
+                upvalues[i] = declaration.capturesLocal[i] ? (Upvalue) environment.get(index) : environment.upvalue(index);
+            }
+            return new LoxFunction(declaration, upvalues, isInitializer);
+        }
+    }
+
+    static class MakeClass extends ExprNode {
+        private final Token name;
+        private final Token superclassName;
+        private final ExprNode superclass;
+        private final int superSlot;
+        private final Closure[] methods;
+
+        MakeClass(Token name, Token superclassName, ExprNode superclass, int superSlot, Closure[] methods) {
+            this.name = name;
+            this.superclassName = superclassName;
+            this.superclass = adopt(superclass);
+            this.superSlot = superSlot;
+            this.methods = methods;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            LoxClass superclassValue = null;
+            if (superclass != null) {
+                if (!(superclass.execute(environment) instanceof LoxClass value)) {
+                    throw new RuntimeError(superclassName, "Superclass must be a class.");
+                }
+                superclassValue = value;
+                // "super" is only ever referred to by methods, so is always captured
+                environment.set(superSlot, new Upvalue(value));
+            }
+
+            var methodsByName = new HashMap<String, LoxFunction>();
+            for (var method : methods) {
+                var function = (LoxFunction) method.execute(environment);
+                methodsByName.put(function.declaration().name.lexeme, function);
+            }
+            if (superclassValue == null) {
+                return new LoxClass(name.lexeme, methodsByName);
+            }
+            return superclassValue.subclass(name.lexeme, methodsByName);
+        }
+    }
+}
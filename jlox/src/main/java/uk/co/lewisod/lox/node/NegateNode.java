@@ -0,0 +1,68 @@
+package uk.co.lewisod.lox.node;
+
+import uk.co.lewisod.lox.Environment;
+import uk.co.lewisod.lox.RuntimeError;
+import uk.co.lewisod.lox.Token;
+
+// Unary minus, which specialises itself for numbers the same way a BinaryNode does
+abstract class NegateNode extends ExprNode.Unary {
+    protected final Token operator;
+
+    NegateNode(Token operator, ExprNode operand) {
+        super(operand);
+        this.operator = operator;
+    }
+
+    static NegateNode create(Token operator, ExprNode operand) {
+        return new Uninitialized(operator, operand);
+    }
+
+    @Override
+    public Object execute(Environment environment) {
+        return apply(operand.execute(environment));
+    }
+
+    abstract Object apply(Object value);
+
+    static class Uninitialized extends NegateNode {
+        Uninitialized(Token operator, ExprNode operand) {
+            super(operator, operand);
+        }
+
+        @Override
+        Object apply(Object value) {
+            NegateNode specialized = value instanceof Double
+                    ? new Number(operator, operand)
+                    : new Generic(operator, operand);
+            return replace(specialized).apply(value);
+        }
+    }
+
+    static class Number extends NegateNode {
+        Number(Token operator, ExprNode operand) {
+            super(operator, operand);
+        }
+
+        @Override
+        Object apply(Object value) {
+            if (value instanceof Double number) {
+                return -number;
+            }
+            return replace(new Generic(operator, operand)).apply(value);
+        }
+    }
+
+    static class Generic extends NegateNode {
+        Generic(Token operator, ExprNode operand) {
+            super(operator, operand);
+        }
+
+        @Override
+        Object apply(Object value) {
+            if (value instanceof Double number) {
+                return -number;
+            }
+            throw new RuntimeError(operator, "Operand must be a number");
+        }
+    }
+}
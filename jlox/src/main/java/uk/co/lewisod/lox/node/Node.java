@@ -0,0 +1,26 @@
+package uk.co.lewisod.lox.node;
+
+// A node in the executable tree built from the AST. Nodes can replace themselves in their parent with a version
+// specialised for the values they've seen so far, so the code run for each expression only handles what it needs to.
+public abstract class Node {
+    Node parent;
+
+    protected <T extends Node> T adopt(T child) {
+        if (child != null) {
+            child.parent = this;
+        }
+        return child;
+    }
+
+    // Swaps this node for another in the tree, and returns the new node
+    protected <T extends Node> T replace(T newNode) {
+        parent.replaceChild(this, newNode);
+        newNode.parent = parent;
+        return newNode;
+    }
+
+    // Nodes with children that can replace themselves point the matching field at the new child
+    protected void replaceChild(Node oldChild, Node newChild) {
+        throw new IllegalStateException("Node has no replaceable children");
+    }
+}
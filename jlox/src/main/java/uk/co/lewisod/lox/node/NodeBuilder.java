@@ -0,0 +1,237 @@
+package uk.co.lewisod.lox.node;
+
+import uk.co.lewisod.lox.Binding;
+import uk.co.lewisod.lox.Expr;
+import uk.co.lewisod.lox.Globals;
+import uk.co.lewisod.lox.Interpreter;
+import uk.co.lewisod.lox.Stmt;
+import uk.co.lewisod.lox.Token;
+import uk.co.lewisod.lox.TokenType;
+
+import java.util.List;
+
+// Converts a resolved AST into executable nodes. Every function's body is converted up front and attached to its
+// declaration, so LoxFunction runs the nodes instead of interpreting the AST.
+public class NodeBuilder implements Expr.Visitor<ExprNode>, Stmt.Visitor<StmtNode> {
+    private final Interpreter interpreter;
+    private final Globals globals;
+
+    private NodeBuilder(Interpreter interpreter, Globals globals) {
+        this.interpreter = interpreter;
+        this.globals = globals;
+    }
+
+    public static StmtNode build(Interpreter interpreter, Globals globals, List<Stmt> statements) {
+        return new NodeBuilder(interpreter, globals).block(statements);
+    }
+
+    private StmtNode block(List<Stmt> statements) {
+        var nodes = new StmtNode[statements.size()];
+        for (var i = 0; i < nodes.length; i++) {
+            nodes[i] = build(statements.get(i));
+        }
+        return new StmtNode.Block(nodes);
+    }
+
+    private StmtNode build(Stmt statement) {
+        return statement.accept(this);
+    }
+
+    private ExprNode build(Expr expression) {
+        return expression.accept(this);
+    }
+
+    @Override
+    public StmtNode visitBlockStmt(Stmt.Block stmt) {
+        return block(stmt.statements);
+    }
+
+    @Override
+    public StmtNode visitClassStmt(Stmt.Class stmt) {
+        var methods = new ExprNode.Closure[stmt.methods.size()];
+        for (var i = 0; i < methods.length; i++) {
+            var method = stmt.methods.get(i);
+            methods[i] = closure(method, method.name.lexeme.equals("init"));
+        }
+
+        var superclass = stmt.superclass == null ? null : build(stmt.superclass);
+        var superclassName = stmt.superclass == null ? null : stmt.superclass.name;
+        var klass = new ExprNode.MakeClass(stmt.name, superclassName, superclass, stmt.superSlot, methods);
+        if (stmt.cell) {
+            return new StmtNode.DefineRecursiveCell(stmt.slot, klass);
+        }
+        return define(stmt.name, stmt.slot, false, klass);
+    }
+
+    @Override
+    public StmtNode visitExpressionStmt(Stmt.Expression stmt) {
+        return new StmtNode.Expression(build(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitFunctionStmt(Stmt.Function stmt) {
+        var function = closure(stmt, false);
+        if (stmt.cell) {
+            return new StmtNode.DefineRecursiveCell(stmt.slot, function);
+        }
+        return define(stmt.name, stmt.slot, false, function);
+    }
+
+    private ExprNode.Closure closure(Stmt.Function declaration, boolean isInitializer) {
+        declaration.compiled = new NodeFunction(declaration, block(declaration.body), isInitializer);
+        return new ExprNode.Closure(declaration, isInitializer);
+    }
+
+    @Override
+    public StmtNode visitIfStmt(Stmt.If stmt) {
+        var elseBranch = stmt.elseBranch == null ? null : build(stmt.elseBranch);
+        return new StmtNode.If(build(stmt.condition), build(stmt.thenBranch), elseBranch);
+    }
+
+    @Override
+    public StmtNode visitPrintStmt(Stmt.Print stmt) {
+        return new StmtNode.Print(build(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.tailCall) {
+            var call = (ExprNode.Invocation) build(stmt.value);
+            call.tail = true;
+            return new StmtNode.Return(call);
+        }
+        var value = stmt.value == null ? new ExprNode.Constant(null) : build(stmt.value);
+        return new StmtNode.Return(value);
+    }
+
+    @Override
+    public StmtNode visitVarStmt(Stmt.Var stmt) {
+        var value = stmt.initializer == null ? new ExprNode.Constant(null) : build(stmt.initializer);
+        return define(stmt.name, stmt.slot, stmt.cell, value);
+    }
+
+    // Globals are left with a slot of -1 by the Resolver
+    private StmtNode define(Token name, int slot, boolean cell, ExprNode value) {
+        if (slot == -1) {
+            return new StmtNode.DefineGlobal(globals, globals.indexOf(name.lexeme), value);
+        }
+        return cell ? new StmtNode.DefineCell(slot, value) : new StmtNode.DefineLocal(slot, value);
+    }
+
+    @Override
+    public StmtNode visitForStmt(Stmt.For stmt) {
+        return new StmtNode.For(stmt.counter.index, stmt.operator, build(stmt.limit), stmt.step, build(stmt.body));
+    }
+
+    @Override
+    public StmtNode visitWhileStmt(Stmt.While stmt) {
+        return new StmtNode.While(build(stmt.condition), build(stmt.body));
+    }
+
+    @Override
+    public ExprNode visitAssignExpr(Expr.Assign expr) {
+        var value = build(expr.value);
+        return switch (expr.binding) {
+            case LOCAL -> new ExprNode.WriteLocal(expr.index, value);
+            case CELL -> new ExprNode.WriteCell(expr.index, value);
+            case UPVALUE -> new ExprNode.WriteUpvalue(expr.index, value);
+            case GLOBAL -> new ExprNode.WriteGlobal(globals, expr.index, expr.name.line, value);
+        };
+    }
+
+    @Override
+    public ExprNode visitBinaryExpr(Expr.Binary expr) {
+        return BinaryNode.create(expr.operator, build(expr.left), build(expr.right));
+    }
+
+    @Override
+    public ExprNode visitCallExpr(Expr.Call expr) {
+        var arguments = new ExprNode[expr.arguments.size()];
+        for (var i = 0; i < arguments.length; i++) {
+            arguments[i] = build(expr.arguments.get(i));
+        }
+        // Methods that are called straight away get passed their receiver, rather than being bound to it first
+        if (expr.callee instanceof Expr.Get get) {
+            return new ExprNode.InvokeProperty(interpreter, expr.paren, build(get.object), get.name, get.cache,
+                    arguments);
+        }
+        if (expr.callee instanceof Expr.Super superExpr) {
+            var superclass = read(superExpr.keyword, superExpr.binding, superExpr.index);
+            var object = read(superExpr.keyword, superExpr.thisBinding, superExpr.thisIndex);
+            return new ExprNode.InvokeSuper(interpreter, expr.paren, superclass, object, superExpr.method, arguments);
+        }
+        return new ExprNode.Call(interpreter, expr.paren, build(expr.callee), arguments);
+    }
+
+    @Override
+    public ExprNode visitGetExpr(Expr.Get expr) {
+        return new ExprNode.GetProperty(build(expr.object), expr.name, expr.cache);
+    }
+
+    @Override
+    public ExprNode visitSetExpr(Expr.Set expr) {
+        return new ExprNode.SetProperty(build(expr.object), expr.name, build(expr.value), expr.cache);
+    }
+
+    @Override
+    public ExprNode visitSuperExpr(Expr.Super expr) {
+        return new ExprNode.Super(read(expr.keyword, expr.binding, expr.index),
+                read(expr.keyword, expr.thisBinding, expr.thisIndex), expr.method);
+    }
+
+    @Override
+    public ExprNode visitThisExpr(Expr.This expr) {
+        return read(expr.keyword, expr.binding, expr.index);
+    }
+
+    @Override
+    public ExprNode visitGroupingExpr(Expr.Grouping expr) {
+        return build(expr.expression);
+    }
+
+    @Override
+    public ExprNode visitInlineExpr(Expr.Inline expr) {
+        var callee = expr.callee == null ? null : build(expr.callee);
+        var arguments = new ExprNode[expr.arguments.size()];
+        for (var i = 0; i < arguments.length; i++) {
+            arguments[i] = build(expr.arguments.get(i));
+        }
+        return new ExprNode.Inline(callee, expr.firstSlot, arguments, build(expr.body));
+    }
+
+    @Override
+    public ExprNode visitLiteralExpr(Expr.Literal expr) {
+        return new ExprNode.Constant(expr.value);
+    }
+
+    @Override
+    public ExprNode visitLogicalExpr(Expr.Logical expr) {
+        if (expr.operator.type == TokenType.OR) {
+            return new ExprNode.Or(build(expr.left), build(expr.right));
+        }
+        return new ExprNode.And(build(expr.left), build(expr.right));
+    }
+
+    @Override
+    public ExprNode visitUnaryExpr(Expr.Unary expr) {
+        return switch (expr.operator.type) {
+            case MINUS -> NegateNode.create(expr.operator, build(expr.right));
+            case BANG -> new ExprNode.Not(build(expr.right));
+            default -> throw new IllegalStateException("Unknown unary expression encountered");
+        };
+    }
+
+    @Override
+    public ExprNode visitVariableExpr(Expr.Variable expr) {
+        return read(expr.name, expr.binding, expr.index);
+    }
+
+    private ExprNode read(Token name, Binding binding, int index) {
+        return switch (binding) {
+            case LOCAL -> new ExprNode.ReadLocal(index);
+            case CELL -> new ExprNode.ReadCell(index);
+            case UPVALUE -> new ExprNode.ReadUpvalue(index);
+            case GLOBAL -> new ExprNode.ReadGlobal(globals, index, name.line);
+        };
+    }
+}
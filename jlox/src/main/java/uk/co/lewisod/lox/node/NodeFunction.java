@@ -0,0 +1,48 @@
+package uk.co.lewisod.lox.node;
+
+import uk.co.lewisod.lox.CompiledFunction;
+import uk.co.lewisod.lox.Completion;
+import uk.co.lewisod.lox.Environment;
+import uk.co.lewisod.lox.LoxFunction;
+import uk.co.lewisod.lox.LoxInstance;
+import uk.co.lewisod.lox.Stmt;
+import uk.co.lewisod.lox.Upvalue;
+
+// The body of a function converted to nodes, which LoxFunction runs in place of walking the AST
+class NodeFunction extends CompiledFunction {
+    private final Stmt.Function declaration;
+    private final StmtNode body;
+    private final boolean isInitializer;
+
+    NodeFunction(Stmt.Function declaration, StmtNode body, boolean isInitializer) {
+        super(declaration.params.size());
+        this.declaration = declaration;
+        this.body = body;
+        this.isInitializer = isInitializer;
+    }
+
+    @Override
+    public Object call(LoxFunction function, Object[] arguments) {
+        return call(function, function.receiver(), arguments);
+    }
+
+    @Override
+    public Object call(LoxFunction function, LoxInstance receiver, Object[] arguments) {
+        var environment = new Environment(declaration.slots, function.upvalues());
+        // Slot zero holds the receiver (unused if this isn't a method), followed by the parameters
+        environment.set(0, receiver);
+        for (var i = 0; i < arguments.length; i++) {
+            environment.set(i + 1, arguments[i]);
+        }
+        for (var slot : declaration.cellParams) {
+            environment.set(slot, new Upvalue(environment.get(slot)));
+        }
+
+        var completion = body.execute(environment);
+        // Force initializers to always return this
+        if (isInitializer) {
+            return receiver;
+        }
+        return completion == Completion.NORMAL ? null : completion;
+    }
+}
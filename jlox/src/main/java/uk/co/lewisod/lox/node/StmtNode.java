@@ -0,0 +1,243 @@
+package uk.co.lewisod.lox.node;
+
+import uk.co.lewisod.lox.Completion;
+import uk.co.lewisod.lox.Environment;
+import uk.co.lewisod.lox.Globals;
+import uk.co.lewisod.lox.Interpreter;
+import uk.co.lewisod.lox.RuntimeError;
+import uk.co.lewisod.lox.Token;
+import uk.co.lewisod.lox.Upvalue;
+
+// A statement that can be executed, giving the value returned if it reaches a return statement or
+// Completion.NORMAL otherwise
+public abstract class StmtNode extends Node {
+    public abstract Object execute(Environment environment);
+
+    static class Block extends StmtNode {
+        private final StmtNode[] statements;
+
+        Block(StmtNode[] statements) {
+            this.statements = statements;
+            for (var statement : statements) {
+                adopt(statement);
+            }
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            for (var statement : statements) {
+                var completion = statement.execute(environment);
+                if (completion != Completion.NORMAL) {
+                    return completion;
+                }
+            }
+            return Completion.NORMAL;
+        }
+    }
+
+    // Base class for statements evaluating a single expression, which may replace itself
+    abstract static class WithExpression extends StmtNode {
+        protected ExprNode expression;
+
+        WithExpression(ExprNode expression) {
+            this.expression = adopt(expression);
+        }
+
+        @Override
+        protected void replaceChild(Node oldChild, Node newChild) {
+            expression = (ExprNode) newChild;
+        }
+    }
+
+    static class Expression extends WithExpression {
+        Expression(ExprNode expression) {
+            super(expression);
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            expression.execute(environment);
+            return Completion.NORMAL;
+        }
+    }
+
+    static class Print extends WithExpression {
+        Print(ExprNode expression) {
+            super(expression);
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            System.out.println(Interpreter.stringify(expression.execute(environment)));
+            return Completion.NORMAL;
+        }
+    }
+
+    static class DefineLocal extends WithExpression {
+        private final int slot;
+
+        DefineLocal(int slot, ExprNode value) {
+            super(value);
+            this.slot = slot;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            environment.set(slot, expression.execute(environment));
+            return Completion.NORMAL;
+        }
+    }
+
+    static class DefineCell extends WithExpression {
+        private final int slot;
+
+        DefineCell(int slot, ExprNode value) {
+            super(value);
+            this.slot = slot;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            environment.set(slot, new Upvalue(expression.execute(environment)));
+            return Completion.NORMAL;
+        }
+    }
+
+    // Functions and classes referring to themselves by name need their Upvalue to exist before they're created
+    static class DefineRecursiveCell extends WithExpression {
+        private final int slot;
+
+        DefineRecursiveCell(int slot, ExprNode value) {
+            super(value);
+            this.slot = slot;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            var cell = new Upvalue(null);
+            environment.set(slot, cell);
+            cell.value = expression.execute(environment);
+            return Completion.NORMAL;
+        }
+    }
+
+    static class DefineGlobal extends WithExpression {
+        private final Globals globals;
+        private final int index;
+
+        DefineGlobal(Globals globals, int index, ExprNode value) {
+            super(value);
+            this.globals = globals;
+            this.index = index;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            globals.define(index, expression.execute(environment));
+            return Completion.NORMAL;
+        }
+    }
+
+    static class Return extends WithExpression {
+        Return(ExprNode value) {
+            super(value);
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            return expression.execute(environment);
+        }
+    }
+
+    static class If extends WithExpression {
+        private final StmtNode thenBranch;
+        private final StmtNode elseBranch;
+
+        If(ExprNode condition, StmtNode thenBranch, StmtNode elseBranch) {
+            super(condition);
+            this.thenBranch = adopt(thenBranch);
+            this.elseBranch = adopt(elseBranch);
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            if (expression.executeBoolean(environment)) {
+                return thenBranch.execute(environment);
+            } else if (elseBranch != null) {
+                return elseBranch.execute(environment);
+            }
+            return Completion.NORMAL;
+        }
+    }
+
+    static class While extends WithExpression {
+        private final StmtNode body;
+
+        While(ExprNode condition, StmtNode body) {
+            super(condition);
+            this.body = adopt(body);
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            while (expression.executeBoolean(environment)) {
+                var completion = body.execute(environment);
+                if (completion != Completion.NORMAL) {
+                    return completion;
+                }
+            }
+            return Completion.NORMAL;
+        }
+    }
+
+    // A loop counting a local up or down, which nothing else assigns to. The counter's kept as a double once it's been
+    // checked to be a number, and only boxed to store it back in its slot for the body to read.
+    static class For extends WithExpression {
+        private final int slot;
+        private final Token operator;
+        private final double step;
+        private final StmtNode body;
+
+        For(int slot, Token operator, ExprNode limit, double step, StmtNode body) {
+            super(limit);
+            this.slot = slot;
+            this.operator = operator;
+            this.step = step;
+            this.body = adopt(body);
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            var start = environment.get(slot);
+            var limit = expression.execute(environment);
+            if (!(start instanceof Double)) {
+                throw new RuntimeError(operator, "Operands must be numbers");
+            }
+
+            var counter = (double) start;
+            while (compare(counter, limit)) {
+                var completion = body.execute(environment);
+                if (completion != Completion.NORMAL) {
+                    return completion;
+                }
+                counter += step;
+                environment.set(slot, counter);
+                limit = expression.execute(environment);
+            }
+            return Completion.NORMAL;
+        }
+
+        private boolean compare(double counter, Object limit) {
+            if (!(limit instanceof Double value)) {
+                throw new RuntimeError(operator, "Operands must be numbers");
+            }
+            return switch (operator.type) {
+                case GREATER -> counter > value;
+                case GREATER_EQUAL -> counter >= value;
+                case LESS -> counter < value;
+                case LESS_EQUAL -> counter <= value;
+                default -> throw new IllegalStateException("Unknown comparison encountered");
+            };
+        }
+    }
+}
@@ -14,29 +14,31 @@ public class GenerateAst {
         }
         var outputDirectory = args[0];
         defineAst(outputDirectory, "Expr", List.of(
-                "Assign   : Token name, Expr value",
-                "Binary   : Expr left, Token operator, Expr right",
-                "Call     : Expr callee, Token paren, List<Expr> arguments",
-                "Get      : Expr object, Token name",
-                "Set      : Expr object, Token name, Expr value",
-                "Super    : Token keyword, Token method",
-                "This     : Token keyword",
+                "Assign   : Token name, Expr value | Binding binding = Binding.GLOBAL, int index",
+                "Binary   : Expr left, Token operator, Expr right | boolean numericLeft, boolean numericRight",
+                "Call     : Expr callee, Token paren, List<Expr> arguments | LoxCallable cachedCallee",
+                "Get      : Expr object, Token name | PropertyCache cache = new PropertyCache()",
+                "Set      : Expr object, Token name, Expr value | PropertyCache cache = new PropertyCache()",
+                "Super    : Token keyword, Token method | Binding binding, int index, Binding thisBinding, int thisIndex",
+                "This     : Token keyword | Binding binding, int index",
                 "Grouping : Expr expression",
+                "Inline   : Stmt.Function function, Expr callee, List<Expr> arguments, Expr body | int firstSlot",
                 "Literal  : Object value",
                 "Logical  : Expr left, Token operator, Expr right",
-                "Unary    : Token operator, Expr right",
-                "Variable : Token name"
+                "Unary    : Token operator, Expr right | boolean numericRight",
+                "Variable : Token name | Binding binding = Binding.GLOBAL, int index, Stmt.Function function"
         ));
 
         defineAst(outputDirectory, "Stmt", List.of(
                 "Block      : List<Stmt> statements",
-                "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods",
+                "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods | int slot = -1, boolean cell, int superSlot",
                 "Expression : Expr expression",
-                "Function   : Token name, List<Token> params, List<Stmt> body",
+                "For        : Stmt.While loop, Expr.Variable counter, Token operator, Expr limit, double step, Stmt body",
+                "Function   : Token name, List<Token> params, List<Stmt> body | int slot = -1, boolean cell, int slots, int[] cellParams, boolean[] capturesLocal, int[] captureIndexes, int calls, volatile CompiledFunction compiled",
                 "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
                 "Print      : Expr expression",
-                "Return     : Token keyword, Expr value",
-                "Var        : Token name, Expr initializer",
+                "Return     : Token keyword, Expr value | boolean tailCall",
+                "Var        : Token name, Expr initializer | int slot = -1, boolean cell",
                 "While      : Expr condition, Stmt body"
         ));
     }
@@ -72,13 +74,23 @@ public class GenerateAst {
         }
     }
 
-    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
+    private static void defineType(PrintWriter writer, String baseName, String className, String fieldSpec) {
         writer.println("  public static class " + className + " extends " + baseName + " {");
 
+        // Fields after a '|' aren't set by the parser, they're filled in by later passes (e.g. the Resolver)
+        var sections = fieldSpec.split("\\|");
+        var fieldList = sections[0].trim();
         var fields = fieldList.split(", ");
         // Fields
         for (var field : fields) {
-            writer.println("    final " + field + ";");
+            writer.println("    public final " + field + ";");
+        }
+
+        if (sections.length > 1) {
+            writer.println();
+            for (var field : sections[1].trim().split(", ")) {
+                writer.println("    public " + field + ";");
+            }
         }
 
         writer.println();
@@ -0,0 +1,10 @@
+package uk.co.lewisod.lox.vm;
+
+// An ongoing function call. Frames are reused between calls, so aren't immutable.
+class CallFrame {
+    ObjClosure closure;
+    // Index of the next instruction in the closure's chunk
+    int ip;
+    // Index in the VM's stack of slot zero
+    int base;
+}
@@ -0,0 +1,47 @@
+package uk.co.lewisod.lox.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A function's bytecode, mirroring clox's Chunk: the instructions, the source line of each byte, and a constant pool
+public class Chunk {
+    byte[] code = new byte[64];
+    int[] lines = new int[64];
+    int count = 0;
+    Object[] constants = new Object[0];
+
+    private final List<Object> constantList = new ArrayList<>();
+    // Lets identical constants (e.g. a property name used many times) share a single entry in the pool
+    private final Map<Object, Integer> constantIndexes = new HashMap<>();
+
+    void write(int b, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, code.length * 2);
+            lines = Arrays.copyOf(lines, lines.length * 2);
+        }
+        code[count] = (byte) b;
+        lines[count] = line;
+        count++;
+    }
+
+    int addConstant(Object value) {
+        var index = constantIndexes.get(value);
+        if (index != null) {
+            return index;
+        }
+
+        constantList.add(value);
+        constantIndexes.put(value, constantList.size() - 1);
+        return constantList.size() - 1;
+    }
+
+    // Called once the compiler is done with the chunk, trimming it down to what the VM needs
+    void finish() {
+        code = Arrays.copyOf(code, count);
+        lines = Arrays.copyOf(lines, count);
+        constants = constantList.toArray();
+    }
+}
@@ -0,0 +1,511 @@
+package uk.co.lewisod.lox.vm;
+
+import uk.co.lewisod.lox.Binding;
+import uk.co.lewisod.lox.Expr;
+import uk.co.lewisod.lox.Globals;
+import uk.co.lewisod.lox.Lox;
+import uk.co.lewisod.lox.Stmt;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Compiles the AST into bytecode for the VM, one Compiler per function like in clox. The Resolver has already worked
+// out where every variable lives, so unlike clox's single-pass compiler this is just a walk over the tree.
+public class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final Globals globals;
+    private final ObjFunction function;
+    private final Chunk chunk;
+    private final boolean isInitializer;
+    // Line of the token currently being compiled, recorded against each byte so the VM can report errors
+    private int line = 0;
+    // Tracks how deep the stack is at each instruction, so the VM knows how much room a call needs
+    private int stackDepth = 0;
+    // Whether the chunk has run out of two byte constant indexes, which is only reported the first time
+    private boolean tooManyConstants = false;
+
+    private Compiler(Globals globals, ObjFunction function, boolean isInitializer) {
+        this.globals = globals;
+        this.function = function;
+        this.chunk = function.chunk;
+        this.isInitializer = isInitializer;
+    }
+
+    // Compiles the top-level script into a function of no arguments
+    public static ObjFunction compile(List<Stmt> statements, int scriptSlots, Globals globals) {
+        // Slot zero holds the script itself, which would otherwise be overwritten by the locals of a top-level block
+        var script = new ObjFunction(null, 0, Math.max(scriptSlots, 1), new int[0], 0);
+        var compiler = new Compiler(globals, script, false);
+        for (var statement : statements) {
+            compiler.compile(statement);
+        }
+        return compiler.end();
+    }
+
+    private ObjFunction end() {
+        emitReturn();
+        chunk.finish();
+        return function;
+    }
+
+    private void compile(Stmt statement) {
+        statement.accept(this);
+    }
+
+    private void compile(Expr expression) {
+        expression.accept(this);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        for (var statement : stmt.statements) {
+            compile(statement);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        if (stmt.superclass != null) {
+            compile(stmt.superclass);
+            // Methods always capture "super", so it's always boxed
+            emitOp(OpCode.DEFINE_CELL, -1);
+            emitShort(stmt.superSlot);
+        }
+        if (stmt.cell) {
+            emitOp(OpCode.NEW_CELL, 0);
+            emitShort(stmt.slot);
+        }
+
+        line = stmt.name.line;
+        emitOp(OpCode.CLASS, 1);
+        emitShort(makeConstant(stmt.name.lexeme));
+
+        if (stmt.superclass != null) {
+            line = stmt.superclass.name.line;
+            emitOp(OpCode.INHERIT, 0);
+            emitShort(stmt.superSlot);
+        }
+
+        for (var method : stmt.methods) {
+            emitClosure(method, method.name.lexeme.equals("init"));
+            emitOp(OpCode.METHOD, -1);
+            emitShort(makeConstant(method.name.lexeme));
+        }
+
+        line = stmt.name.line;
+        if (stmt.cell) {
+            emitOp(OpCode.SET_CELL, 0);
+            emitShort(stmt.slot);
+            emitOp(OpCode.POP, -1);
+        } else {
+            emitDefine(stmt.name.lexeme, stmt.slot, false);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emitOp(OpCode.POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        line = stmt.name.line;
+        // Like the Interpreter, a captured function's Upvalue needs to exist before it's created
+        if (stmt.cell) {
+            emitOp(OpCode.NEW_CELL, 0);
+            emitShort(stmt.slot);
+            emitClosure(stmt, false);
+            emitOp(OpCode.SET_CELL, 0);
+            emitShort(stmt.slot);
+            emitOp(OpCode.POP, -1);
+        } else {
+            emitClosure(stmt, false);
+            emitDefine(stmt.name.lexeme, stmt.slot, false);
+        }
+        return null;
+    }
+
+    private void emitClosure(Stmt.Function declaration, boolean isInitializer) {
+        var nested = new ObjFunction(declaration.name.lexeme, declaration.params.size(), declaration.slots,
+                declaration.cellParams, declaration.captureIndexes.length);
+        var compiler = new Compiler(globals, nested, isInitializer);
+        compiler.line = declaration.name.line;
+        for (var statement : declaration.body) {
+            compiler.compile(statement);
+        }
+        compiler.end();
+
+        emitOp(OpCode.CLOSURE, 1);
+        emitShort(makeConstant(nested));
+        for (var i = 0; i < declaration.captureIndexes.length; i++) {
+            emitByte(declaration.capturesLocal[i] ? 1 : 0);
+            emitShort(declaration.captureIndexes[i]);
+        }
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+
+        var thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emitOp(OpCode.POP, -1);
+        compile(stmt.thenBranch);
+
+        var elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        // The condition is still on the stack when jumping here
+        stackDepth++;
+        emitOp(OpCode.POP, -1);
+        if (stmt.elseBranch != null) {
+            compile(stmt.elseBranch);
+        }
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emitOp(OpCode.PRINT, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+        if (stmt.value == null) {
+            emitReturn();
+        } else if (stmt.tailCall) {
+            compileCall((Expr.Call) stmt.value, OpCode.TAIL_CALL);
+            emitOp(OpCode.RETURN, -1);
+        } else {
+            compile(stmt.value);
+            emitOp(OpCode.RETURN, -1);
+        }
+        return null;
+    }
+
+    private void emitReturn() {
+        // Initializers always return "this"
+        if (isInitializer) {
+            var thisIsCell = Arrays.stream(function.cellParams).anyMatch(slot -> slot == 0);
+            emitOp(thisIsCell ? OpCode.GET_CELL : OpCode.GET_LOCAL, 1);
+            emitShort(0);
+        } else {
+            emitOp(OpCode.NIL, 1);
+        }
+        emitOp(OpCode.RETURN, -1);
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emitOp(OpCode.NIL, 1);
+        }
+        line = stmt.name.line;
+        emitDefine(stmt.name.lexeme, stmt.slot, stmt.cell);
+        return null;
+    }
+
+    // Pops the value on top of the stack into a newly declared variable. Globals are left with a slot of -1 by the
+    // Resolver.
+    private void emitDefine(String name, int slot, boolean cell) {
+        if (slot == -1) {
+            emitOp(OpCode.DEFINE_GLOBAL, -1);
+            emitShort(globals.indexOf(name));
+        } else {
+            emitOp(cell ? OpCode.DEFINE_CELL : OpCode.DEFINE_LOCAL, -1);
+            emitShort(slot);
+        }
+    }
+
+    // The VM's arithmetic instructions already work on the numbers on its stack, so a counted loop is compiled like
+    // the loop it was recognised from
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        compile(stmt.loop);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        var loopStart = chunk.count;
+        compile(stmt.condition);
+
+        var exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emitOp(OpCode.POP, -1);
+        compile(stmt.body);
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        stackDepth++;
+        emitOp(OpCode.POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        line = expr.name.line;
+        var op = switch (expr.binding) {
+            case LOCAL -> OpCode.SET_LOCAL;
+            case CELL -> OpCode.SET_CELL;
+            case UPVALUE -> OpCode.SET_UPVALUE;
+            case GLOBAL -> OpCode.SET_GLOBAL;
+        };
+        emitOp(op, 0);
+        emitShort(expr.index);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case MINUS -> emitOp(OpCode.SUBTRACT, -1);
+            case SLASH -> emitOp(OpCode.DIVIDE, -1);
+            case STAR -> emitOp(OpCode.MULTIPLY, -1);
+            case PLUS -> emitOp(OpCode.ADD, -1);
+            case GREATER -> emitOp(OpCode.GREATER, -1);
+            case GREATER_EQUAL -> emitOp(OpCode.GREATER_EQUAL, -1);
+            case LESS -> emitOp(OpCode.LESS, -1);
+            case LESS_EQUAL -> emitOp(OpCode.LESS_EQUAL, -1);
+            case BANG_EQUAL -> {
+                emitOp(OpCode.EQUAL, -1);
+                emitOp(OpCode.NOT, 0);
+            }
+            case EQUAL_EQUAL -> emitOp(OpCode.EQUAL, -1);
+            default -> throw new IllegalStateException("Unknown binary expression encountered");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        compileCall(expr, OpCode.CALL);
+        return null;
+    }
+
+    private void compileCall(Expr.Call expr, byte opcode) {
+        compile(expr.callee);
+        for (var argument : expr.arguments) {
+            compile(argument);
+        }
+
+        line = expr.paren.line;
+        emitOp(opcode, -expr.arguments.size());
+        emitByte(expr.arguments.size());
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        line = expr.name.line;
+        emitOp(OpCode.GET_PROPERTY, 0);
+        emitShort(makeConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        // The Interpreter doesn't evaluate the value if the object can't have fields, which only makes a difference
+        // if evaluating it could have side effects or fail
+        if (!isTrivial(expr.value)) {
+            line = expr.name.line;
+            emitOp(OpCode.CHECK_INSTANCE, 0);
+        }
+        compile(expr.value);
+
+        line = expr.name.line;
+        emitOp(OpCode.SET_PROPERTY, -1);
+        emitShort(makeConstant(expr.name.lexeme));
+        return null;
+    }
+
+    private static boolean isTrivial(Expr expr) {
+        return expr instanceof Expr.Literal
+                || expr instanceof Expr.This
+                || expr instanceof Expr.Variable variable && variable.binding != Binding.GLOBAL;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        line = expr.keyword.line;
+        emitLoad(expr.thisBinding, expr.thisIndex);
+        emitLoad(expr.binding, expr.index);
+        line = expr.method.line;
+        emitOp(OpCode.GET_SUPER, -1);
+        emitShort(makeConstant(expr.method.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        line = expr.keyword.line;
+        emitLoad(expr.binding, expr.index);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitInlineExpr(Expr.Inline expr) {
+        if (expr.callee != null) {
+            compile(expr.callee);
+            emitOp(OpCode.POP, -1);
+        }
+        for (var i = 0; i < expr.arguments.size(); i++) {
+            compile(expr.arguments.get(i));
+            emitOp(OpCode.DEFINE_LOCAL, -1);
+            emitShort(expr.firstSlot + i);
+        }
+        compile(expr.body);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emitOp(OpCode.NIL, 1);
+        } else if (expr.value.equals(true)) {
+            emitOp(OpCode.TRUE, 1);
+        } else if (expr.value.equals(false)) {
+            emitOp(OpCode.FALSE, 1);
+        } else {
+            // Literals can use CONSTANT_LONG, so a script can have as many as it likes
+            var constant = chunk.addConstant(expr.value);
+            if (constant > 0xffff) {
+                emitOp(OpCode.CONSTANT_LONG, 1);
+                emitByte(constant >> 16);
+                emitShort(constant & 0xffff);
+            } else {
+                emitOp(OpCode.CONSTANT, 1);
+                emitShort(constant);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+
+        var endJump = switch (expr.operator.type) {
+            case OR -> {
+                var elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+                var jump = emitJump(OpCode.JUMP);
+                patchJump(elseJump);
+                yield jump;
+            }
+            case AND -> emitJump(OpCode.JUMP_IF_FALSE);
+            default -> throw new IllegalStateException("Unknown logical expression encountered");
+        };
+        emitOp(OpCode.POP, -1);
+        compile(expr.right);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case MINUS -> emitOp(OpCode.NEGATE, 0);
+            case BANG -> emitOp(OpCode.NOT, 0);
+            default -> throw new IllegalStateException("Unknown unary expression encountered");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line = expr.name.line;
+        emitLoad(expr.binding, expr.index);
+        return null;
+    }
+
+    private void emitLoad(Binding binding, int index) {
+        var op = switch (binding) {
+            case LOCAL -> OpCode.GET_LOCAL;
+            case CELL -> OpCode.GET_CELL;
+            case UPVALUE -> OpCode.GET_UPVALUE;
+            case GLOBAL -> OpCode.GET_GLOBAL;
+        };
+        emitOp(op, 1);
+        emitShort(index);
+    }
+
+    // Writes an instruction, given how many values it leaves on the stack compared to before it ran
+    private void emitOp(byte op, int stackEffect) {
+        chunk.write(op, line);
+        stackDepth += stackEffect;
+        function.maxStack = Math.max(function.maxStack, stackDepth);
+    }
+
+    private void emitByte(int b) {
+        chunk.write(b, line);
+    }
+
+    private void emitShort(int value) {
+        chunk.write((value >> 8) & 0xff, line);
+        chunk.write(value & 0xff, line);
+    }
+
+    // Jumps leave the stack as they found it, the conditional ones peeking at the condition rather than popping it
+    private int emitJump(byte op) {
+        emitOp(op, 0);
+        emitShort(0xffff);
+        return chunk.count - 2;
+    }
+
+    private void patchJump(int offset) {
+        // -2 to account for the jump offset itself
+        var jump = chunk.count - offset - 2;
+        if (jump > 0xffff) {
+            Lox.error(line, "Too much code to jump over.");
+        }
+
+        chunk.code[offset] = (byte) ((jump >> 8) & 0xff);
+        chunk.code[offset + 1] = (byte) (jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emitOp(OpCode.LOOP, 0);
+
+        // +2 to account for the loop offset itself
+        var offset = chunk.count - loopStart + 2;
+        if (offset > 0xffff) {
+            Lox.error(line, "Loop body too large.");
+        }
+        emitShort(offset);
+    }
+
+    // Adds a constant that's referred to by a two byte index, e.g. a name or a nested function
+    private int makeConstant(Object value) {
+        var constant = chunk.addConstant(value);
+        if (constant > 0xffff) {
+            if (!tooManyConstants) {
+                Lox.error(line, "Too many constants in one chunk.");
+                tooManyConstants = true;
+            }
+            return 0;
+        }
+        return constant;
+    }
+}
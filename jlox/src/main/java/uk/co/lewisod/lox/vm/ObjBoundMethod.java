@@ -0,0 +1,9 @@
+package uk.co.lewisod.lox.vm;
+
+// A method accessed on an instance, which becomes "this" (slot zero) when the method is called
+public record ObjBoundMethod(ObjInstance receiver, ObjClosure method) {
+    @Override
+    public String toString() {
+        return method.toString();
+    }
+}
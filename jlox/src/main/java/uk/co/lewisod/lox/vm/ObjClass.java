@@ -0,0 +1,20 @@
+package uk.co.lewisod.lox.vm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class ObjClass {
+    final String name;
+    // Includes inherited methods, which are copied down from the superclass when the class is created
+    final Map<String, ObjClosure> methods = new HashMap<>();
+    ObjClosure initializer = null;
+
+    ObjClass(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,18 @@
+package uk.co.lewisod.lox.vm;
+
+import uk.co.lewisod.lox.Upvalue;
+
+public class ObjClosure {
+    final ObjFunction function;
+    final Upvalue[] upvalues;
+
+    ObjClosure(ObjFunction function, Upvalue[] upvalues) {
+        this.function = function;
+        this.upvalues = upvalues;
+    }
+
+    @Override
+    public String toString() {
+        return function.toString();
+    }
+}
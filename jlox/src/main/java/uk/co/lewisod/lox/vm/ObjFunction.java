@@ -0,0 +1,29 @@
+package uk.co.lewisod.lox.vm;
+
+// A compiled function, before it's been turned into a closure
+public class ObjFunction {
+    // Null for the top-level script
+    final String name;
+    final int arity;
+    // Locals the function needs room for, including the callee/receiver in slot zero and the parameters
+    final int slots;
+    // Parameters (and "this") captured by closures, which are boxed when the function is called
+    final int[] cellParams;
+    final int upvalueCount;
+    final Chunk chunk = new Chunk();
+    // How much of the stack the function needs on top of its locals
+    int maxStack;
+
+    ObjFunction(String name, int arity, int slots, int[] cellParams, int upvalueCount) {
+        this.name = name;
+        this.arity = arity;
+        this.slots = slots;
+        this.cellParams = cellParams;
+        this.upvalueCount = upvalueCount;
+    }
+
+    @Override
+    public String toString() {
+        return name == null ? "<script>" : "<fn " + name + ">";
+    }
+}
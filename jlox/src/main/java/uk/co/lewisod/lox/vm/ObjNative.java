@@ -0,0 +1,13 @@
+package uk.co.lewisod.lox.vm;
+
+// A function implemented in Java, like clox's ObjNative
+public record ObjNative(int arity, NativeFn function) {
+    public interface NativeFn {
+        Object call(Object[] arguments);
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
@@ -0,0 +1,64 @@
+package uk.co.lewisod.lox.vm;
+
+// Instructions understood by the VM, mirroring clox's OpCode enum. These are plain byte constants rather than an enum
+// so the VM can switch directly on the bytes in a chunk. Unless noted, operands are two bytes long (big-endian), which
+// is enough for constant pool indexes, slots, globals, upvalues and jump offsets.
+final class OpCode {
+    static final byte CONSTANT = 0;
+    static final byte NIL = 1;
+    static final byte TRUE = 2;
+    static final byte FALSE = 3;
+    static final byte POP = 4;
+    static final byte GET_LOCAL = 5;
+    static final byte SET_LOCAL = 6;
+    // Pops the value on top of the stack into a local's slot
+    static final byte DEFINE_LOCAL = 7;
+    // Cells are locals that closures have captured, so their slot holds an Upvalue rather than the value itself
+    static final byte GET_CELL = 8;
+    static final byte SET_CELL = 9;
+    static final byte DEFINE_CELL = 10;
+    // Boxes a captured function or class before it's created, so it can refer to itself
+    static final byte NEW_CELL = 11;
+    static final byte GET_UPVALUE = 12;
+    static final byte SET_UPVALUE = 13;
+    static final byte GET_GLOBAL = 14;
+    static final byte SET_GLOBAL = 15;
+    static final byte DEFINE_GLOBAL = 16;
+    static final byte GET_PROPERTY = 17;
+    // Checks a property is being set on an instance before its value is evaluated
+    static final byte CHECK_INSTANCE = 18;
+    static final byte SET_PROPERTY = 19;
+    static final byte GET_SUPER = 20;
+    static final byte EQUAL = 21;
+    static final byte GREATER = 22;
+    static final byte GREATER_EQUAL = 23;
+    static final byte LESS = 24;
+    static final byte LESS_EQUAL = 25;
+    static final byte ADD = 26;
+    static final byte SUBTRACT = 27;
+    static final byte MULTIPLY = 28;
+    static final byte DIVIDE = 29;
+    static final byte NOT = 30;
+    static final byte NEGATE = 31;
+    static final byte PRINT = 32;
+    static final byte JUMP = 33;
+    static final byte JUMP_IF_FALSE = 34;
+    static final byte LOOP = 35;
+    // Takes a single byte operand, the number of arguments
+    static final byte CALL = 36;
+    // Followed by a one byte isLocal flag and an index for each variable the closure captures
+    static final byte CLOSURE = 37;
+    static final byte RETURN = 38;
+    static final byte CLASS = 39;
+    // Copies the methods of the superclass boxed in the given slot down into the class on top of the stack
+    static final byte INHERIT = 40;
+    static final byte METHOD = 41;
+    // Takes the number of arguments like CALL, but replaces the current frame with the call's if it can. Always
+    // followed by a RETURN, for when it can't.
+    static final byte TAIL_CALL = 42;
+    // Like CONSTANT, with a three byte index for chunks with more constants than fit in two
+    static final byte CONSTANT_LONG = 43;
+
+    private OpCode() {
+    }
+}
@@ -0,0 +1,441 @@
+package uk.co.lewisod.lox.vm;
+
+import uk.co.lewisod.lox.Globals;
+import uk.co.lewisod.lox.Interpreter;
+import uk.co.lewisod.lox.Lox;
+import uk.co.lewisod.lox.Rope;
+import uk.co.lewisod.lox.RuntimeError;
+import uk.co.lewisod.lox.Upvalue;
+
+import java.util.Arrays;
+
+// Runs functions compiled by the Compiler on a stack of values, mirroring clox's VM. Each call gets a window of the
+// stack starting with the callee (or receiver) in slot zero, followed by the arguments and the rest of its locals, with
+// the values it's working on above those.
+public class VM {
+    private final Globals globals;
+    private Object[] stack = new Object[256];
+    private int stackTop = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    private int maxCallDepth = Lox.DEFAULT_MAX_CALL_DEPTH;
+
+    public VM(Globals globals) {
+        this.globals = globals;
+        globals.define("clock", new ObjNative(0, arguments -> (double) System.currentTimeMillis() / 1000.0));
+    }
+
+    public void setMaxCallDepth(int maxCallDepth) {
+        this.maxCallDepth = maxCallDepth;
+    }
+
+    public void interpret(ObjFunction script) {
+        try {
+            var closure = new ObjClosure(script, new Upvalue[0]);
+            stack[0] = closure;
+            stackTop = 1;
+            call(closure, 0);
+            run();
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+            resetStack();
+        }
+    }
+
+    private void resetStack() {
+        Arrays.fill(stack, null);
+        stackTop = 0;
+        frameCount = 0;
+    }
+
+    private void run() {
+        // The state of the current frame is kept in locals while it's running, and only written back to the frame
+        // (and the VM) when calling or returning from a function
+        while (true) {
+            var frame = frames[frameCount - 1];
+            var chunk = frame.closure.function.chunk;
+            var code = chunk.code;
+            var constants = chunk.constants;
+            var upvalues = frame.closure.upvalues;
+            var stack = this.stack;
+            var base = frame.base;
+            var ip = frame.ip;
+            var sp = stackTop;
+
+            dispatch:
+            while (true) {
+                switch (code[ip++]) {
+                    case OpCode.CONSTANT -> {
+                        stack[sp++] = constants[readShort(code, ip)];
+                        ip += 2;
+                    }
+                    case OpCode.CONSTANT_LONG -> {
+                        stack[sp++] = constants[readLong(code, ip)];
+                        ip += 3;
+                    }
+                    case OpCode.NIL -> stack[sp++] = null;
+                    case OpCode.TRUE -> stack[sp++] = true;
+                    case OpCode.FALSE -> stack[sp++] = false;
+                    case OpCode.POP -> sp--;
+                    case OpCode.GET_LOCAL -> {
+                        stack[sp++] = stack[base + readShort(code, ip)];
+                        ip += 2;
+                    }
+                    case OpCode.SET_LOCAL -> {
+                        stack[base + readShort(code, ip)] = stack[sp - 1];
+                        ip += 2;
+                    }
+                    case OpCode.DEFINE_LOCAL -> {
+                        stack[base + readShort(code, ip)] = stack[--sp];
+                        ip += 2;
+                    }
+                    case OpCode.GET_CELL -> {
+                        stack[sp++] = ((Upvalue) stack[base + readShort(code, ip)]).value;
+                        ip += 2;
+                    }
+                    case OpCode.SET_CELL -> {
+                        ((Upvalue) stack[base + readShort(code, ip)]).value = stack[sp - 1];
+                        ip += 2;
+                    }
+                    case OpCode.DEFINE_CELL -> {
+                        stack[base + readShort(code, ip)] = new Upvalue(stack[--sp]);
+                        ip += 2;
+                    }
+                    case OpCode.NEW_CELL -> {
+                        stack[base + readShort(code, ip)] = new Upvalue(null);
+                        ip += 2;
+                    }
+                    case OpCode.GET_UPVALUE -> {
+                        stack[sp++] = upvalues[readShort(code, ip)].value;
+                        ip += 2;
+                    }
+                    case OpCode.SET_UPVALUE -> {
+                        upvalues[readShort(code, ip)].value = stack[sp - 1];
+                        ip += 2;
+                    }
+                    case OpCode.GET_GLOBAL -> {
+                        stack[sp++] = globals.get(readShort(code, ip), chunk.lines[ip]);
+                        ip += 2;
+                    }
+                    case OpCode.SET_GLOBAL -> {
+                        globals.assign(readShort(code, ip), chunk.lines[ip], stack[sp - 1]);
+                        ip += 2;
+                    }
+                    case OpCode.DEFINE_GLOBAL -> {
+                        globals.define(readShort(code, ip), stack[--sp]);
+                        ip += 2;
+                    }
+                    case OpCode.GET_PROPERTY -> {
+                        var name = (String) constants[readShort(code, ip)];
+                        ip += 2;
+                        if (!(stack[sp - 1] instanceof ObjInstance instance)) {
+                            throw error(chunk, ip, "Only instances of classes have properties.");
+                        }
+
+                        var fields = instance.fields;
+                        if (fields.containsKey(name)) {
+                            stack[sp - 1] = fields.get(name);
+                        } else {
+                            var method = instance.klass.methods.get(name);
+                            if (method == null) {
+                                throw error(chunk, ip, "Undefined property " + name + ".");
+                            }
+                            stack[sp - 1] = new ObjBoundMethod(instance, method);
+                        }
+                    }
+                    case OpCode.CHECK_INSTANCE -> {
+                        if (!(stack[sp - 1] instanceof ObjInstance)) {
+                            throw error(chunk, ip, "Only instances of classes have fields.");
+                        }
+                    }
+                    case OpCode.SET_PROPERTY -> {
+                        var name = (String) constants[readShort(code, ip)];
+                        ip += 2;
+                        var value = stack[--sp];
+                        if (!(stack[sp - 1] instanceof ObjInstance instance)) {
+                            throw error(chunk, ip, "Only instances of classes have fields.");
+                        }
+                        instance.fields.put(name, value);
+                        stack[sp - 1] = value;
+                    }
+                    case OpCode.GET_SUPER -> {
+                        var name = (String) constants[readShort(code, ip)];
+                        ip += 2;
+                        var superclass = (ObjClass) stack[--sp];
+                        var method = superclass.methods.get(name);
+                        if (method == null) {
+                            throw error(chunk, ip, "Undefined property '" + name + ".");
+                        }
+                        stack[sp - 1] = new ObjBoundMethod((ObjInstance) stack[sp - 1], method);
+                    }
+                    case OpCode.EQUAL -> {
+                        var b = stack[--sp];
+                        stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], b);
+                    }
+                    case OpCode.GREATER -> {
+                        var b = stack[--sp];
+                        if (stack[sp - 1] instanceof Double left && b instanceof Double right) {
+                            stack[sp - 1] = left > right;
+                        } else {
+                            throw error(chunk, ip, "Operands must be numbers");
+                        }
+                    }
+                    case OpCode.GREATER_EQUAL -> {
+                        var b = stack[--sp];
+                        if (stack[sp - 1] instanceof Double left && b instanceof Double right) {
+                            stack[sp - 1] = left >= right;
+                        } else {
+                            throw error(chunk, ip, "Operands must be numbers");
+                        }
+                    }
+                    case OpCode.LESS -> {
+                        var b = stack[--sp];
+                        if (stack[sp - 1] instanceof Double left && b instanceof Double right) {
+                            stack[sp - 1] = left < right;
+                        } else {
+                            throw error(chunk, ip, "Operands must be numbers");
+                        }
+                    }
+                    case OpCode.LESS_EQUAL -> {
+                        var b = stack[--sp];
+                        if (stack[sp - 1] instanceof Double left && b instanceof Double right) {
+                            stack[sp - 1] = left <= right;
+                        } else {
+                            throw error(chunk, ip, "Operands must be numbers");
+                        }
+                    }
+                    case OpCode.ADD -> {
+                        var b = stack[--sp];
+                        var a = stack[sp - 1];
+                        if (a instanceof Double left && b instanceof Double right) {
+                            stack[sp - 1] = left + right;
+                        } else if (a instanceof CharSequence left && b instanceof CharSequence right) {
+                            stack[sp - 1] = Rope.concat(left, right);
+                        } else {
+                            throw error(chunk, ip, "Operands must both be numbers or strings");
+                        }
+                    }
+                    case OpCode.SUBTRACT -> {
+                        var b = stack[--sp];
+                        if (stack[sp - 1] instanceof Double left && b instanceof Double right) {
+                            stack[sp - 1] = left - right;
+                        } else {
+                            throw error(chunk, ip, "Operands must be numbers");
+                        }
+                    }
+                    case OpCode.MULTIPLY -> {
+                        var b = stack[--sp];
+                        if (stack[sp - 1] instanceof Double left && b instanceof Double right) {
+                            stack[sp - 1] = left * right;
+                        } else {
+                            throw error(chunk, ip, "Operands must be numbers");
+                        }
+                    }
+                    case OpCode.DIVIDE -> {
+                        var b = stack[--sp];
+                        if (stack[sp - 1] instanceof Double left && b instanceof Double right) {
+                            if (right.equals(0.0)) {
+                                throw error(chunk, ip, "Cannot divide by zero");
+                            }
+                            stack[sp - 1] = left / right;
+                        } else {
+                            throw error(chunk, ip, "Operands must be numbers");
+                        }
+                    }
+                    case OpCode.NOT -> stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+                    case OpCode.NEGATE -> {
+                        if (!(stack[sp - 1] instanceof Double value)) {
+                            throw error(chunk, ip, "Operand must be a number");
+                        }
+                        stack[sp - 1] = -value;
+                    }
+                    case OpCode.PRINT -> System.out.println(Interpreter.stringify(stack[--sp]));
+                    case OpCode.JUMP -> ip += readShort(code, ip) + 2;
+                    case OpCode.JUMP_IF_FALSE -> {
+                        var offset = readShort(code, ip);
+                        ip += 2;
+                        if (!Interpreter.isTruthy(stack[sp - 1])) ip += offset;
+                    }
+                    case OpCode.LOOP -> ip -= readShort(code, ip) - 2;
+                    case OpCode.CALL -> {
+                        var argCount = code[ip++] & 0xff;
+                        frame.ip = ip;
+                        stackTop = sp;
+                        callValue(stack[sp - argCount - 1], argCount);
+                        break dispatch;
+                    }
+                    case OpCode.TAIL_CALL -> {
+                        var argCount = code[ip++] & 0xff;
+                        frame.ip = ip;
+                        var calleeSlot = sp - argCount - 1;
+                        var callee = stack[calleeSlot];
+                        var closure = tailCallTarget(callee, argCount);
+                        if (closure == null) {
+                            // Called as normal, with the RETURN that follows returning the result
+                            stackTop = sp;
+                            callValue(callee, argCount);
+                            break dispatch;
+                        }
+
+                        // Move the callee (or receiver) and arguments down over this frame's, and replace the frame
+                        if (callee instanceof ObjBoundMethod bound) {
+                            stack[calleeSlot] = bound.receiver();
+                        }
+                        System.arraycopy(stack, calleeSlot, stack, base, argCount + 1);
+                        Arrays.fill(stack, base + argCount + 1, sp, null);
+                        frameCount--;
+                        stackTop = base + argCount + 1;
+                        call(closure, argCount);
+                        break dispatch;
+                    }
+                    case OpCode.CLOSURE -> {
+                        var function = (ObjFunction) constants[readShort(code, ip)];
+                        ip += 2;
+                        var captured = new Upvalue[function.upvalueCount];
+                        for (var i = 0; i < captured.length; i++) {
+                            var isLocal = code[ip++] == 1;
+                            var index = readShort(code, ip);
+                            ip += 2;
+                            captured[i] = isLocal ? (Upvalue) stack[base + index] : upvalues[index];
+                        }
+                        stack[sp++] = new ObjClosure(function, captured);
+                    }
+                    case OpCode.RETURN -> {
+                        var result = stack[--sp];
+                        frameCount--;
+                        // Don't keep the returning function's locals alive
+                        Arrays.fill(stack, base, sp, null);
+                        if (frameCount == 0) {
+                            stackTop = 0;
+                            return;
+                        }
+
+                        stack[base] = result;
+                        stackTop = base + 1;
+                        break dispatch;
+                    }
+                    case OpCode.CLASS -> {
+                        stack[sp++] = new ObjClass((String) constants[readShort(code, ip)]);
+                        ip += 2;
+                    }
+                    case OpCode.INHERIT -> {
+                        var superclass = ((Upvalue) stack[base + readShort(code, ip)]).value;
+                        ip += 2;
+                        if (!(superclass instanceof ObjClass parent)) {
+                            throw error(chunk, ip, "Superclass must be a class.");
+                        }
+                        var klass = (ObjClass) stack[sp - 1];
+                        klass.methods.putAll(parent.methods);
+                        klass.initializer = parent.initializer;
+                    }
+                    case OpCode.METHOD -> {
+                        var name = (String) constants[readShort(code, ip)];
+                        ip += 2;
+                        var method = (ObjClosure) stack[--sp];
+                        var klass = (ObjClass) stack[sp - 1];
+                        klass.methods.put(name, method);
+                        if (name.equals("init")) {
+                            klass.initializer = method;
+                        }
+                    }
+                    default -> throw new IllegalStateException("Unknown opcode " + code[ip - 1]);
+                }
+            }
+        }
+    }
+
+    private static int readShort(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+    }
+
+    private static int readLong(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 16) | ((code[ip + 1] & 0xff) << 8) | (code[ip + 2] & 0xff);
+    }
+
+    // The closure a tail call can replace the current frame with, if the callee's a function or method taking that
+    // many arguments. Anything else could fail, which needs reporting from the frame making the call.
+    private static ObjClosure tailCallTarget(Object callee, int argCount) {
+        ObjClosure closure = null;
+        if (callee instanceof ObjClosure function) {
+            closure = function;
+        } else if (callee instanceof ObjBoundMethod bound) {
+            closure = bound.method();
+        }
+        return closure != null && closure.function.arity == argCount ? closure : null;
+    }
+
+    // Expects the callee and its arguments to be on top of the stack
+    private void callValue(Object callee, int argCount) {
+        if (callee instanceof ObjClosure closure) {
+            call(closure, argCount);
+        } else if (callee instanceof ObjBoundMethod bound) {
+            stack[stackTop - argCount - 1] = bound.receiver();
+            call(bound.method(), argCount);
+        } else if (callee instanceof ObjClass klass) {
+            if (klass.initializer == null && argCount != 0) {
+                throw error("Expected 0 arguments but got " + argCount + ".");
+            }
+
+            stack[stackTop - argCount - 1] = new ObjInstance(klass);
+            if (klass.initializer != null) {
+                call(klass.initializer, argCount);
+            }
+        } else if (callee instanceof ObjNative nativeFn) {
+            if (argCount != nativeFn.arity()) {
+                throw error("Expected " + nativeFn.arity() + " arguments but got " + argCount + ".");
+            }
+
+            var arguments = Arrays.copyOfRange(stack, stackTop - argCount, stackTop);
+            var result = nativeFn.function().call(arguments);
+            stackTop -= argCount + 1;
+            stack[stackTop++] = result;
+        } else {
+            throw error("Can only call functions and classes");
+        }
+    }
+
+    private void call(ObjClosure closure, int argCount) {
+        var function = closure.function;
+        if (argCount != function.arity) {
+            throw error("Expected " + function.arity + " arguments but got " + argCount + ".");
+        }
+
+        // The script's frame doesn't count as a call
+        if (frameCount > maxCallDepth) {
+            throw error("Stack overflow.");
+        }
+
+        var base = stackTop - argCount - 1;
+        var needed = base + function.slots + function.maxStack;
+        if (needed > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(needed, stack.length * 2));
+        }
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frames.length * 2);
+        }
+        if (frames[frameCount] == null) {
+            frames[frameCount] = new CallFrame();
+        }
+
+        var frame = frames[frameCount++];
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = base;
+
+        for (var slot : function.cellParams) {
+            stack[base + slot] = new Upvalue(stack[base + slot]);
+        }
+        stackTop = base + function.slots;
+    }
+
+    // Reports the error at the instruction the current frame is on
+    private RuntimeError error(String message) {
+        var frame = frames[frameCount - 1];
+        return error(frame.closure.function.chunk, frame.ip, message);
+    }
+
+    // ip is just past the failing instruction, so the line of its last byte is the one to report
+    private static RuntimeError error(Chunk chunk, int ip, String message) {
+        return new RuntimeError(chunk.lines[ip - 1], message);
+    }
+}